@@ -0,0 +1,55 @@
+package fis.baolm2.keycloak.benchmark;
+
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+import org.keycloak.component.ComponentModel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+import static fis.baolm2.keycloak.constant.RemoteUserStorageProviderConstants.ADD_ROLES_TO_TOKEN;
+
+/**
+ * Remote users and component configuration shared by the benchmarks.
+ */
+final class Fixtures {
+
+    static final String COMPONENT_ID = "8d4e0c7a-5b8f-4d2e-9a51-3f6c2b1e7d90";
+
+    private Fixtures() {
+    }
+
+    static ComponentModel component() {
+        ComponentModel model = new ComponentModel();
+        model.setId(COMPONENT_ID);
+        model.setName("remote-user-federation");
+        model.setParentId("benchmark");
+        model.put(ADD_ROLES_TO_TOKEN, "true");
+        return model;
+    }
+
+    static RemoteUserEntity user(int index, int attributeCount, int roleCount) {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < attributeCount; i++) {
+            attributes.put("attribute" + i, "value-" + index + "-" + i);
+        }
+        StringJoiner roles = new StringJoiner(",");
+        for (int i = 0; i < roleCount; i++) {
+            roles.add("role" + i);
+        }
+        RemoteUserEntity user = new RemoteUserEntity("0b7f5c3e-" + index, "First" + index, "Last" + index, "user" + index,
+                "user" + index + "@example.com", true, true, "2024-01-15T12:34:13+08:00", attributes, roles.toString());
+        user.setUpdatedAt("2024-02-01T09:00:00+08:00");
+        return user;
+    }
+
+    static List<RemoteUserEntity> users(int count, int attributeCount, int roleCount) {
+        List<RemoteUserEntity> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            users.add(user(i, attributeCount, roleCount));
+        }
+        return users;
+    }
+}
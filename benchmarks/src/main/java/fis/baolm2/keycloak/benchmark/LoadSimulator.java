@@ -0,0 +1,223 @@
+package fis.baolm2.keycloak.benchmark;
+
+import fis.baolm2.keycloak.provider.federation.RemoteComponentContext;
+import fis.baolm2.keycloak.provider.federation.RemoteUserProvider;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.credential.CredentialInput;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static fis.baolm2.keycloak.constant.RemoteUserStorageProviderConstants.*;
+
+/**
+ * End-to-end login load against {@link RemoteServiceStub}. <br>
+ * Each simulated login looks a random user up by username through {@link RemoteUserProvider} and verifies its password,
+ * with a new provider per login as Keycloak creates one per session. Every combination of injected remote latency and
+ * concurrency is run for a fixed duration, then throughput and login latency percentiles are printed.
+ * <p>
+ * Options, as {@code --name=value}: {@code users} (10000), {@code latencies} in ms (1,10,50), {@code distribution}
+ * (lognormal), {@code error-rate} (0), {@code concurrency} (16,64,256), {@code threads} virtual or platform (virtual),
+ * {@code warmup} and {@code duration} in seconds (3, 10), {@code cache-ttl} in seconds (60), {@code max-connections} (200),
+ * {@code bulk-find} (false), {@code instances} of the stand-in (1) and {@code hedging} (false).
+ */
+public final class LoadSimulator {
+
+    private final Map<String, String> options;
+    private final RealmModel realm = Stubs.of(RealmModel.class, Map.of("getId", "benchmark", "getName", "benchmark"));
+    private final KeycloakSession session = Stubs.of(KeycloakSession.class);
+    private final CredentialInput password = Stubs.of(CredentialInput.class,
+            Map.of("getType", "password", "getChallengeResponse", RemoteServiceStub.PASSWORD));
+
+    private LoadSimulator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "true");
+        }
+        new LoadSimulator(options).run();
+    }
+
+    private void run() throws Exception {
+        int users = Integer.parseInt(option("users", "10000"));
+        String distribution = option("distribution", "lognormal");
+        int instances = Math.max(1, Integer.parseInt(option("instances", "1")));
+        System.out.printf("users=%d distribution=%s error-rate=%s threads=%s cache-ttl=%ss bulk-find=%s instances=%d hedging=%s%n", users, distribution,
+                option("error-rate", "0"), option("threads", "virtual"), option("cache-ttl", "60"), option("bulk-find", "false"),
+                instances, option("hedging", "false"));
+        System.out.printf("%12s %12s %12s %12s %10s %10s %10s%n", "latency(ms)", "concurrency", "logins/s", "errors", "p50(ms)", "p99(ms)", "max(ms)");
+        List<RemoteServiceStub> stubs = new ArrayList<>(instances);
+        try {
+            for (int i = 0; i < instances; i++) {
+                RemoteServiceStub stub = new RemoteServiceStub(users);
+                stub.setErrorRate(Double.parseDouble(option("error-rate", "0")));
+                stubs.add(stub);
+            }
+            String url = String.join(",", stubs.stream().map(RemoteServiceStub::getUrl).toList());
+            for (String latency : option("latencies", "1,10,50").split(",")) {
+                RemoteServiceStub.Latency injected = new RemoteServiceStub.Latency(distribution, Double.parseDouble(latency.trim()));
+                stubs.forEach(stub -> stub.setLatency(injected));
+                for (String concurrency : option("concurrency", "16,64,256").split(",")) {
+                    Result result = round(url, users, Integer.parseInt(concurrency.trim()));
+                    System.out.printf("%12s %12s %12.0f %12d %10.2f %10.2f %10.2f%n", latency.trim(), concurrency.trim(),
+                            result.throughput(), result.errors(), result.percentile(0.50), result.percentile(0.99), result.percentile(1.0));
+                    if (result.firstError() != null) {
+                        System.out.printf("%12s first error: %s%n", "", result.firstError());
+                    }
+                }
+            }
+        } finally {
+            stubs.forEach(RemoteServiceStub::close);
+        }
+    }
+
+    /**
+     * Runs one combination on a fresh component, so caches and connection pools start cold and are warmed up by the warmup phase.
+     */
+    private Result round(String url, int users, int concurrency) throws InterruptedException {
+        ComponentModel model = component(url);
+        RemoteComponentContext context = new RemoteComponentContext(model, null);
+        try {
+            drive(model, context, users, concurrency, TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup", "3"))));
+            return drive(model, context, users, concurrency, TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "10"))));
+        } finally {
+            context.close();
+        }
+    }
+
+    private Result drive(ComponentModel model, RemoteComponentContext context, int users, int concurrency, long durationNanos) throws InterruptedException {
+        ThreadFactory threads = "platform".equals(option("threads", "virtual")) ? Thread.ofPlatform().factory() : Thread.ofVirtual().factory();
+        long end = System.nanoTime() + durationNanos;
+        List<Thread> workers = new ArrayList<>(concurrency);
+        List<Worker> results = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            Worker worker = new Worker(model, context, users, end);
+            results.add(worker);
+            Thread thread = threads.newThread(worker);
+            workers.add(thread);
+            thread.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return Result.of(results, durationNanos);
+    }
+
+    private void login(ComponentModel model, RemoteComponentContext context, String username) {
+        RemoteUserProvider provider = new RemoteUserProvider(session, model, context.getUserService(), context);
+        try {
+            UserModel user = provider.getUserByUsername(realm, username);
+            if (user == null) {
+                throw new IllegalStateException("User " + username + " not found");
+            }
+            if (!provider.isValid(realm, user, password)) {
+                throw new IllegalStateException("Password of " + username + " rejected");
+            }
+        } finally {
+            provider.close();
+        }
+    }
+
+    private ComponentModel component(String url) {
+        ComponentModel model = Fixtures.component();
+        model.put(REMOTE_PROVIDER_URL, url);
+        model.put(FIND_USER_ENDPOINT, "/find");
+        model.put(VERIFY_USER_ENDPOINT, "/verify");
+        model.put(SEARCH_USER_ENDPOINT, "/search");
+        model.put(COUNT_USER_ENDPOINT, "/count");
+        if (Boolean.parseBoolean(option("bulk-find", "false"))) {
+            model.put(BULK_FIND_USER_ENDPOINT, "/bulk-find");
+        }
+        model.put(USER_CACHE_TTL, option("cache-ttl", "60"));
+        model.put(HTTP_MAX_CONNECTIONS, option("max-connections", "200"));
+        model.put(HEDGING_ENABLED, option("hedging", "false"));
+        return model;
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private final class Worker implements Runnable {
+
+        private final ComponentModel model;
+        private final RemoteComponentContext context;
+        private final int users;
+        private final long end;
+        private long[] latencies = new long[1024];
+        private int count;
+        private long errors;
+        private String firstError;
+
+        private Worker(ComponentModel model, RemoteComponentContext context, int users, long end) {
+            this.model = model;
+            this.context = context;
+            this.users = users;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long start;
+            while ((start = System.nanoTime()) < end) {
+                try {
+                    login(model, context, "user" + random.nextInt(users));
+                } catch (RuntimeException e) {
+                    if (errors++ == 0) {
+                        firstError = e.toString();
+                    }
+                    continue;
+                }
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = System.nanoTime() - start;
+            }
+        }
+    }
+
+    private record Result(long[] latencies, long errors, String firstError, long durationNanos) {
+
+        static Result of(List<Worker> workers, long durationNanos) {
+            int total = workers.stream().mapToInt(worker -> worker.count).sum();
+            long[] latencies = new long[total];
+            int offset = 0;
+            long errors = 0;
+            String firstError = null;
+            for (Worker worker : workers) {
+                System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+                offset += worker.count;
+                errors += worker.errors;
+                firstError = firstError == null ? worker.firstError : firstError;
+            }
+            Arrays.sort(latencies);
+            return new Result(latencies, errors, firstError, durationNanos);
+        }
+
+        double throughput() {
+            return latencies.length / (durationNanos / 1e9);
+        }
+
+        double percentile(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile * latencies.length) - 1;
+            return latencies[Math.max(0, index)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package fis.baolm2.keycloak.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import fis.baolm2.keycloak.dto.RemoteBulkFindInput;
+import fis.baolm2.keycloak.dto.RemoteCredentialInput;
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local stand-in for the remote user service, implementing the find, bulk find, verify, search and count contract. <br>
+ * Every request is delayed by a latency drawn from the configured distribution, and fails with 503 at the configured error rate.
+ * Found users carry an ETag, so conditional lookups of unchanged users are answered with 304.
+ * All users have the password {@link #PASSWORD}.
+ */
+final class RemoteServiceStub implements AutoCloseable {
+
+    static final String PASSWORD = "secret";
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final List<RemoteUserEntity> users;
+    private final Map<String, RemoteUserEntity> byId = new HashMap<>();
+    private final Map<String, RemoteUserEntity> byUsername = new HashMap<>();
+    private final Map<String, RemoteUserEntity> byEmail = new HashMap<>();
+
+    private volatile Latency latency = new Latency("fixed", 0);
+    private volatile double errorRate;
+
+    RemoteServiceStub(int userCount) throws IOException {
+        this.users = Fixtures.users(userCount, 10, 5);
+        for (RemoteUserEntity user : users) {
+            byId.put(user.getId(), user);
+            byUsername.put(user.getUserName().toLowerCase(Locale.ROOT), user);
+            byEmail.put(user.getEmail().toLowerCase(Locale.ROOT), user);
+        }
+        // Without it the server's separate header and body writes wait for delayed ACKs, adding ~40ms to every call
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+        server.setExecutor(executor);
+        server.createContext("/find", exchange -> handle(exchange, this::find));
+        server.createContext("/bulk-find", exchange -> handle(exchange, this::bulkFind));
+        server.createContext("/verify", exchange -> handle(exchange, this::verify));
+        server.createContext("/search", exchange -> handle(exchange, this::search));
+        server.createContext("/count", exchange -> handle(exchange, e -> Map.of("total", users.size())));
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    void setLatency(Latency latency) {
+        this.latency = latency;
+    }
+
+    void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private RemoteUserEntity find(HttpExchange exchange) {
+        Map<String, String> query = query(exchange);
+        String type = query.getOrDefault("type", "id");
+        String key = query.get(type);
+        if (key == null) {
+            return null;
+        }
+        return switch (type) {
+            case "username" -> byUsername.get(key.toLowerCase(Locale.ROOT));
+            case "email" -> byEmail.get(key.toLowerCase(Locale.ROOT));
+            default -> byId.get(key);
+        };
+    }
+
+    private List<RemoteUserEntity> bulkFind(HttpExchange exchange) throws IOException {
+        RemoteBulkFindInput input = read(exchange, RemoteBulkFindInput.class);
+        List<RemoteUserEntity> found = new ArrayList<>();
+        for (String key : input.values()) {
+            RemoteUserEntity user = switch (input.type()) {
+                case "username" -> byUsername.get(key.toLowerCase(Locale.ROOT));
+                case "email" -> byEmail.get(key.toLowerCase(Locale.ROOT));
+                default -> byId.get(key);
+            };
+            if (user != null) {
+                found.add(user);
+            }
+        }
+        return found;
+    }
+
+    private Map<String, Boolean> verify(HttpExchange exchange) throws IOException {
+        RemoteCredentialInput input = read(exchange, RemoteCredentialInput.class);
+        boolean valid = input.username() != null && byUsername.containsKey(input.username().toLowerCase(Locale.ROOT))
+                && PASSWORD.equals(input.password());
+        return Map.of("isValid", valid);
+    }
+
+    private List<RemoteUserEntity> search(HttpExchange exchange) {
+        Map<String, String> query = query(exchange);
+        int skip = Integer.parseInt(query.getOrDefault("skip", "0"));
+        int take = Integer.parseInt(query.getOrDefault("take", String.valueOf(users.size())));
+        int from = Math.min(skip, users.size());
+        return users.subList(from, Math.min(users.size(), from + take));
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try (exchange) {
+            long delay = latency.nextNanos();
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+            if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            Object body = handler.handle(exchange);
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (body instanceof RemoteUserEntity user) {
+                // Users never change here, so the identity of the instance is a valid entity tag
+                String etag = "\"" + Integer.toHexString(System.identityHashCode(user)) + "\"";
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+            }
+            byte[] bytes = JSON.writeValueAsBytes(body);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <T> T read(HttpExchange exchange, Class<T> type) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            return JSON.readValue(body, type);
+        }
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> query = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) {
+            return query;
+        }
+        for (String pair : raw.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object handle(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * Injected remote latency: {@code fixed}, {@code uniform} (0 to twice the mean), {@code exponential},
+     * or {@code lognormal} (the mean is the median, with a long tail).
+     */
+    record Latency(String distribution, double meanMillis) {
+
+        private static final double LOGNORMAL_SIGMA = 0.8;
+
+        long nextNanos() {
+            if (meanMillis <= 0) {
+                return 0;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            double millis = switch (distribution) {
+                case "uniform" -> random.nextDouble(2 * meanMillis);
+                case "exponential" -> -meanMillis * Math.log(1 - random.nextDouble());
+                case "lognormal" -> meanMillis * Math.exp(LOGNORMAL_SIGMA * random.nextGaussian());
+                default -> meanMillis;
+            };
+            return (long) (millis * 1_000_000);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package fis.baolm2.keycloak.benchmark;
+
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+import fis.baolm2.keycloak.provider.federation.RemoteRoleMapper;
+import fis.baolm2.keycloak.provider.federation.RemoteRoleProvisioner;
+import fis.baolm2.keycloak.provider.federation.RemoteUserAdapter;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Attribute and role mapping reads of {@link RemoteUserAdapter}. <br>
+ * The {@code newAdapter*} benchmarks create an adapter per operation, as every user lookup does on the login path;
+ * the others reuse one adapter, as repeated reads within a request do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RemoteUserAdapterBenchmark {
+
+    @Param({"5", "50"})
+    public int attributeCount;
+
+    @Param({"3", "30"})
+    public int roleCount;
+
+    private ComponentModel model;
+    private KeycloakSession session;
+    private RealmModel realm;
+    private RemoteRoleProvisioner provisioner;
+    private RemoteRoleMapper roleMapper;
+    private RemoteUserEntity user;
+    private RemoteUserAdapter adapter;
+
+    @Setup
+    public void setup() {
+        model = Fixtures.component();
+        Map<String, RoleModel> roles = new ConcurrentHashMap<>();
+        Function<Object[], Object> getRole = args -> roles.computeIfAbsent((String) args[0], name -> Stubs.of(RoleModel.class, Map.of("getName", name)));
+        realm = Stubs.of(RealmModel.class, Map.of("getId", "benchmark", "getName", "benchmark", "getRole", getRole));
+        Function<Object[], Object> getProvider = args -> Stubs.of((Class<?>) args[0]);
+        session = Stubs.of(KeycloakSession.class, Map.of("getProvider", getProvider));
+        provisioner = new RemoteRoleProvisioner(RemoteRoleProvisioner.POLICY_DISABLED, null, null);
+        roleMapper = new RemoteRoleMapper(provisioner);
+        user = Fixtures.user(1, attributeCount, roleCount);
+        adapter = newAdapter(roleMapper);
+    }
+
+    @Benchmark
+    public Object newAdapterGetAttributes() {
+        return newAdapter(roleMapper).getAttributes();
+    }
+
+    @Benchmark
+    public String newAdapterGetFirstAttribute() {
+        return newAdapter(roleMapper).getFirstAttribute("attribute0");
+    }
+
+    @Benchmark
+    public String getFirstAttribute() {
+        return adapter.getFirstAttribute("attribute0");
+    }
+
+    @Benchmark
+    public void getRoleMappingsStream(Blackhole blackhole) {
+        adapter.getRoleMappingsStream().forEach(blackhole::consume);
+    }
+
+    @Benchmark
+    public void newSessionGetRoleMappingsStream(Blackhole blackhole) {
+        newAdapter(new RemoteRoleMapper(provisioner)).getRoleMappingsStream().forEach(blackhole::consume);
+    }
+
+    private RemoteUserAdapter newAdapter(RemoteRoleMapper mapper) {
+        return new RemoteUserAdapter(model, session, realm, model, user, mapper, false, true) {
+            @Override
+            public UserFederatedStorageProvider getFederatedStorage() {
+                // Federated storage of Keycloak is out of scope, it is stubbed to return no mappings
+                return Stubs.of(UserFederatedStorageProvider.class);
+            }
+        };
+    }
+}
@@ -0,0 +1,55 @@
+package fis.baolm2.keycloak.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORMapper;
+import fis.baolm2.keycloak.service.RemoteResponseReader;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of a search response page into {@code RemoteUserEntity} objects, as {@code UserService.searchUsers} does
+ * once the HTTP response has arrived.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SearchDecodeBenchmark {
+
+    @Param({"10", "100"})
+    public int pageSize;
+
+    @Param({"json", "cbor"})
+    public String format;
+
+    private byte[] body;
+    private ContentType contentType;
+
+    @Setup
+    public void setup() throws IOException {
+        ObjectMapper mapper = "cbor".equals(format) ? new CBORMapper() : new ObjectMapper();
+        body = mapper.writeValueAsBytes(Fixtures.users(pageSize, 10, 5));
+        contentType = ContentType.create("cbor".equals(format) ? RemoteResponseReader.CBOR_CONTENT_TYPE : RemoteResponseReader.JSON_CONTENT_TYPE);
+    }
+
+    @Benchmark
+    public Object decodeUserList() throws IOException {
+        return RemoteResponseReader.USER_LIST.read(new ByteArrayEntity(body, contentType));
+    }
+}
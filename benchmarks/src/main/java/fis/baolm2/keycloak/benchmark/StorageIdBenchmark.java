@@ -0,0 +1,44 @@
+package fis.baolm2.keycloak.benchmark;
+
+import org.keycloak.storage.StorageId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of federated user ids ({@code f:<component id>:<external id>}) as done by {@code RemoteUserProvider.getUserById}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StorageIdBenchmark {
+
+    private String keycloakId;
+
+    @Setup
+    public void setup() {
+        keycloakId = StorageId.keycloakId(Fixtures.component(), "0b7f5c3e-1");
+    }
+
+    @Benchmark
+    public String newStorageId() {
+        return new StorageId(keycloakId).getExternalId();
+    }
+
+    @Benchmark
+    public String externalId() {
+        return StorageId.externalId(keycloakId);
+    }
+}
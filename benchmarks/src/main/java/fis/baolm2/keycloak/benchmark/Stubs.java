@@ -0,0 +1,74 @@
+package fis.baolm2.keycloak.benchmark;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Minimal stand-ins for Keycloak model interfaces, so provider code can run outside a Keycloak server. <br>
+ * Methods with a configured answer return it, other methods return an empty or zero value, or another stub for interface types.
+ */
+final class Stubs {
+
+    private Stubs() {
+    }
+
+    static <T> T of(Class<T> type) {
+        return of(type, Map.of());
+    }
+
+    /**
+     * @param answers method name to a fixed return value, or to a {@code Function<Object[], Object>} of the call arguments.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T of(Class<T> type, Map<String, Object> answers) {
+        return (T) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + " stub";
+                default:
+                    break;
+            }
+            if (answers.containsKey(method.getName())) {
+                Object answer = answers.get(method.getName());
+                return answer instanceof Function<?, ?> function ? ((Function<Object[], Object>) function).apply(args) : answer;
+            }
+            return empty(method.getReturnType());
+        });
+    }
+
+    private static Object empty(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == Stream.class) {
+            return Stream.empty();
+        }
+        if (type == List.class) {
+            return List.of();
+        }
+        if (type == Set.class) {
+            return Set.of();
+        }
+        if (type == Map.class) {
+            return Map.of();
+        }
+        if (type.isInterface()) {
+            return of(type);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,125 @@
+package fis.baolm2.keycloak.cache;
+
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded cache with refresh-ahead, shared by {@link RemoteCountCache} and {@link RemoteGroupMemberIndex}. <br>
+ * Only the first request for a key waits for the remote server. When a value gets close to its TTL a background refresh
+ * is started, and if that refresh fails the last known value is kept until the TTL has passed. After that the entry is
+ * dropped, so a remote server that keeps failing is not hidden behind a value of arbitrary age.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type, values are shared between callers and must not be modified.
+ */
+public class RefreshAheadCache<K, V> {
+
+    private static final Logger logger = Logger.getLogger(RefreshAheadCache.class);
+
+    // Start refreshing when this share of the TTL has passed, so entries are usually renewed before they expire
+    private static final double REFRESH_AHEAD_FACTOR = 0.8;
+
+    @FunctionalInterface
+    public interface Loader<V> {
+        V load() throws IOException;
+    }
+
+    private final String name;
+    private final long ttlMillis;
+    private final long refreshAfterMillis;
+    private final int maxEntries;
+    private final Executor refreshExecutor;
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param name names the cached values in log messages.
+     */
+    public RefreshAheadCache(String name, long ttlMillis, int maxEntries, Executor refreshExecutor) {
+        this.name = name;
+        this.ttlMillis = ttlMillis;
+        this.refreshAfterMillis = (long) (ttlMillis * REFRESH_AHEAD_FACTOR);
+        this.maxEntries = maxEntries;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * @return the cached value for the key, loading it only if it is not known yet or its TTL has passed.
+     * @throws IOException if that load fails; the failure is not cached.
+     */
+    public V get(K key, Loader<V> loader) throws IOException {
+        if (ttlMillis <= 0) {
+            return loader.load();
+        }
+        Entry<V> entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.loadedAt >= ttlMillis) {
+            entries.remove(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            V value = loader.load();
+            put(key, new Entry<>(value, System.currentTimeMillis()));
+            return value;
+        }
+        if (now - entry.loadedAt >= refreshAfterMillis) {
+            refresh(key, entry, loader);
+        }
+        return entry.value;
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private void refresh(K key, Entry<V> entry, Loader<V> loader) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    entry.value = loader.load();
+                    entry.loadedAt = System.currentTimeMillis();
+                } catch (IOException | RuntimeException e) {
+                    if (System.currentTimeMillis() - entry.loadedAt >= ttlMillis) {
+                        logger.warnf("Refreshing %s %s failed and its TTL has passed, dropping it: %s", name, key, e.getMessage());
+                        entries.remove(key, entry);
+                    } else {
+                        logger.warnf("Refreshing %s %s failed, keeping the last known value: %s", name, key, e.getMessage());
+                    }
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    private void put(K key, Entry<V> entry) {
+        entries.put(key, entry);
+        if (entries.size() > maxEntries) {
+            entries.entrySet().stream()
+                    .min(Comparator.comparingLong(e -> e.getValue().loadedAt))
+                    .ifPresent(eldest -> entries.remove(eldest.getKey(), eldest.getValue()));
+        }
+    }
+
+    private static final class Entry<V> {
+        private volatile V value;
+        private volatile long loadedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(V value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
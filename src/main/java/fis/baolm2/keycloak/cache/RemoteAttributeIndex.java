@@ -0,0 +1,129 @@
+package fis.baolm2.keycloak.cache;
+
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Inverted index from attribute name and value to the ids of the users holding it, kept by {@link RemoteUserCache}
+ * for the users it caches. <br>
+ * Only the configured attribute names are indexed, so memory is bounded by the cache size times the indexed attributes.
+ * Values identifying a single user, the common case for attributes worth looking up, are stored as a bare id.
+ * <p>
+ * Not thread-safe, every access is guarded by the lock of the owning cache.
+ */
+public class RemoteAttributeIndex {
+
+    public static final String ALL_ATTRIBUTES = "*";
+
+    // Longer values are not indexed, they are free text rather than identifiers
+    private static final int MAX_VALUE_LENGTH = 255;
+
+    private final Set<String> names;
+    // attribute name -> value -> id (String) or ids (Set<String>)
+    private final Map<String, Map<String, Object>> index = new HashMap<>();
+
+    private RemoteAttributeIndex(Set<String> names) {
+        this.names = names;
+    }
+
+    /**
+     * @param names comma-separated attribute names, {@value #ALL_ATTRIBUTES} for all attributes.
+     * @return the index, or {@code null} if no attribute is to be indexed.
+     */
+    public static RemoteAttributeIndex of(String names) {
+        if (names == null || names.isBlank()) {
+            return null;
+        }
+        Set<String> indexed = Arrays.stream(names.split(","))
+                .map(String::trim)
+                .filter(name -> !name.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+        if (indexed.isEmpty()) {
+            return null;
+        }
+        return new RemoteAttributeIndex(indexed.contains(ALL_ATTRIBUTES) ? null : indexed);
+    }
+
+    public boolean isIndexed(String name) {
+        return names == null || names.contains(name);
+    }
+
+    void add(RemoteUserEntity entity) {
+        Map<String, String> attributes = entity.getAttributes();
+        if (attributes == null) {
+            return;
+        }
+        attributes.forEach((name, value) -> {
+            if (value != null && value.length() <= MAX_VALUE_LENGTH && isIndexed(name)) {
+                index.computeIfAbsent(name, n -> new HashMap<>()).merge(value, entity.getId(), RemoteAttributeIndex::addId);
+            }
+        });
+    }
+
+    void remove(RemoteUserEntity entity) {
+        Map<String, String> attributes = entity.getAttributes();
+        if (attributes == null) {
+            return;
+        }
+        attributes.forEach((name, value) -> {
+            Map<String, Object> values = value == null ? null : index.get(name);
+            if (values == null) {
+                return;
+            }
+            values.computeIfPresent(value, (v, ids) -> removeId(ids, entity.getId()));
+            if (values.isEmpty()) {
+                index.remove(name);
+            }
+        });
+    }
+
+    /**
+     * @return the ids of the users holding the value, empty if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    Collection<String> find(String name, String value) {
+        Map<String, Object> values = index.get(name);
+        Object ids = values == null ? null : values.get(value);
+        if (ids == null) {
+            return List.of();
+        }
+        return ids instanceof String id ? List.of(id) : List.copyOf((Set<String>) ids);
+    }
+
+    void clear() {
+        index.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object addId(Object ids, Object id) {
+        if (ids instanceof String single) {
+            if (single.equals(id)) {
+                return single;
+            }
+            Set<String> set = new HashSet<>(4);
+            set.add(single);
+            set.add((String) id);
+            return set;
+        }
+        ((Set<String>) ids).add((String) id);
+        return ids;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object removeId(Object ids, String id) {
+        if (ids instanceof String single) {
+            return single.equals(id) ? null : single;
+        }
+        Set<String> set = (Set<String>) ids;
+        set.remove(id);
+        return set.size() == 1 ? set.iterator().next() : set;
+    }
+}
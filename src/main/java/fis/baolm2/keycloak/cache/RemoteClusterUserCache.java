@@ -0,0 +1,146 @@
+package fis.baolm2.keycloak.cache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+import org.infinispan.Cache;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Second level of a {@link RemoteUserCache}, shared by all Keycloak nodes through one of Keycloak's Infinispan caches. <br>
+ * Users fetched or invalidated on one node are written to the shared cache, so other nodes find them without calling the remote server.
+ * Every node listens to changes made by the other nodes and evicts its local copy of the user, so invalidations apply cluster-wide.
+ * <p>
+ * Users are stored as JSON strings under {@code <component id>:id:<id>}, with username and email keys holding the id,
+ * all expiring with the local entry. When a user's username or email changes, the keys of the old ones are removed;
+ * a key that still points at a renamed user is ignored by {@link RemoteUserCache#get}.
+ * The shared cache must be replicated, like Keycloak's {@code work} cache, for the change listener to see the writes of every node.
+ */
+@Listener
+public class RemoteClusterUserCache implements RemoteUserCache.Listener, RemoteUserCache.SecondLevel, AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(RemoteClusterUserCache.class);
+
+    public static final String MODE_LOCAL = "local";
+    public static final String MODE_CLUSTER = "cluster";
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final ObjectWriter WRITER = JSON.writerFor(RemoteUserEntity.class);
+    private static final ObjectReader READER = JSON.readerFor(RemoteUserEntity.class);
+
+    private final Cache<String, String> cache;
+    private final RemoteUserCache localCache;
+    private final String prefix;
+    private final String userPrefix;
+
+    public RemoteClusterUserCache(Cache<String, String> cache, String componentId, RemoteUserCache localCache) {
+        this.cache = cache;
+        this.localCache = localCache;
+        this.prefix = componentId + ":";
+        this.userPrefix = key(RemoteUserCache.TYPE_ID, "");
+        cache.addListener(this);
+    }
+
+    @Override
+    public RemoteUserEntity get(String type, String key) {
+        try {
+            String id = RemoteUserCache.TYPE_ID.equals(type) ? key : cache.get(key(type, normalize(key)));
+            String json = id == null ? null : cache.get(key(RemoteUserCache.TYPE_ID, id));
+            return json == null ? null : READER.readValue(json);
+        } catch (IOException | RuntimeException e) {
+            logger.warnf("Reading user %s=%s from cluster cache %s failed: %s", type, key, cache.getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void onPut(RemoteUserEntity entity, long expiresAt) {
+        long lifespan = expiresAt - System.currentTimeMillis();
+        if (lifespan <= 0) {
+            return;
+        }
+        try {
+            removeRenamedKeys(cache.get(key(RemoteUserCache.TYPE_ID, entity.getId())), entity);
+            // Asynchronous, so logins do not wait for the replication to the other nodes
+            cache.putAsync(key(RemoteUserCache.TYPE_ID, entity.getId()), WRITER.writeValueAsString(entity), lifespan, TimeUnit.MILLISECONDS)
+                    .whenComplete((previous, e) -> {
+                        if (e != null) {
+                            logger.warnf("Writing user %s to cluster cache %s failed: %s", entity.getId(), cache.getName(), e.getMessage());
+                        }
+                    });
+            if (entity.getUserName() != null) {
+                cache.putAsync(key(RemoteUserCache.TYPE_USERNAME, normalize(entity.getUserName())), entity.getId(), lifespan, TimeUnit.MILLISECONDS);
+            }
+            if (entity.getEmail() != null) {
+                cache.putAsync(key(RemoteUserCache.TYPE_EMAIL, normalize(entity.getEmail())), entity.getId(), lifespan, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warnf("Writing user %s to cluster cache %s failed: %s", entity.getId(), cache.getName(), e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the username and email keys of the previously shared version of the user that no longer apply,
+     * unless another user took them over meanwhile.
+     */
+    private void removeRenamedKeys(String previousJson, RemoteUserEntity entity) throws IOException {
+        if (previousJson == null) {
+            return;
+        }
+        RemoteUserEntity previous = READER.readValue(previousJson);
+        removeChangedKey(RemoteUserCache.TYPE_USERNAME, previous.getUserName(), entity.getUserName(), entity.getId());
+        removeChangedKey(RemoteUserCache.TYPE_EMAIL, previous.getEmail(), entity.getEmail(), entity.getId());
+    }
+
+    private void removeChangedKey(String type, String previousValue, String value, String id) {
+        if (previousValue != null && (value == null || !normalize(previousValue).equals(normalize(value)))) {
+            cache.removeAsync(key(type, normalize(previousValue)), id);
+        }
+    }
+
+    @Override
+    public void onInvalidate(String id) {
+        try {
+            // Synchronous, the invalidation has reached every node when this returns
+            cache.remove(key(RemoteUserCache.TYPE_ID, id));
+        } catch (RuntimeException e) {
+            logger.warnf("Invalidating user %s in cluster cache %s failed: %s", id, cache.getName(), e.getMessage());
+        }
+    }
+
+    @CacheEntryCreated
+    @CacheEntryModified
+    @CacheEntryRemoved
+    public void onClusterChange(CacheEntryEvent<String, String> event) {
+        if (event.isPre() || event.isOriginLocal()) {
+            return;
+        }
+        String key = event.getKey();
+        if (key != null && key.startsWith(userPrefix)) {
+            localCache.evict(key.substring(userPrefix.length()));
+        }
+    }
+
+    @Override
+    public void close() {
+        cache.removeListener(this);
+    }
+
+    private String key(String type, String value) {
+        return prefix + type + ":" + value;
+    }
+
+    private static String normalize(String key) {
+        return key.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,65 @@
+package fis.baolm2.keycloak.cache;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
+/**
+ * Cache of remote user counts with refresh-ahead, see {@link RefreshAheadCache}. <br>
+ * Only the very first request for a query waits for the remote server. Once a count is known it is answered from the cache;
+ * when it gets close to its TTL a background refresh is started, and if that refresh fails the last known count is kept
+ * until the TTL has passed. A count that could not be loaded yet fails instead of answering 0.
+ */
+public class RemoteCountCache {
+
+    private static final int MAX_ENTRIES = 1000;
+
+    @FunctionalInterface
+    public interface CountLoader {
+        int load() throws IOException;
+    }
+
+    /**
+     * Identifies a count query by its params and group ids, independent of their iteration order.
+     * Paging params are ignored; {@code groupIds} is {@code null} for a count without a group filter.
+     */
+    public record Key(Map<String, String> params, Set<String> groupIds) {
+        public Key {
+            TreeMap<String, String> query = params == null ? new TreeMap<>() : new TreeMap<>(params);
+            query.remove("skip");
+            query.remove("take");
+            params = Collections.unmodifiableSortedMap(query);
+            groupIds = groupIds == null ? null : Collections.unmodifiableSortedSet(new TreeSet<>(groupIds));
+        }
+    }
+
+    private final RefreshAheadCache<Key, Integer> counts;
+
+    public RemoteCountCache(long ttlMillis, Executor refreshExecutor) {
+        this.counts = new RefreshAheadCache<>("user count", ttlMillis, MAX_ENTRIES, refreshExecutor);
+    }
+
+    /**
+     * Builds the cache key of a count query.
+     */
+    public static Key key(Map<String, String> params, Collection<String> groupIds) {
+        return new Key(params, groupIds == null ? null : new TreeSet<>(groupIds));
+    }
+
+    /**
+     * @return the cached count for the key, loading it only if it is not known yet or its TTL has passed.
+     * @throws IOException if that load fails; the failure is not cached, so the next request loads it again.
+     */
+    public int get(Key key, CountLoader loader) throws IOException {
+        return counts.get(key, loader::load);
+    }
+
+    public void clear() {
+        counts.clear();
+    }
+}
@@ -0,0 +1,60 @@
+package fis.baolm2.keycloak.cache;
+
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.Executor;
+
+/**
+ * Cache of remote group memberships, from group name to the ids of its members. <br>
+ * Members are kept as a sorted array of ids per group, compact and in a stable order for paging.
+ * Like {@link RemoteCountCache} it is a {@link RefreshAheadCache}: only the first request for a group waits for the remote server,
+ * and when the members get close to their TTL they are reloaded in the background, keeping the last known members on failure
+ * until the TTL has passed.
+ */
+public class RemoteGroupMemberIndex {
+
+    private static final Logger logger = Logger.getLogger(RemoteGroupMemberIndex.class);
+
+    private static final int MAX_GROUPS = 1000;
+    private static final String[] NO_MEMBERS = new String[0];
+
+    @FunctionalInterface
+    public interface MemberLoader {
+        Collection<String> load(String group) throws IOException;
+    }
+
+    private final MemberLoader loader;
+    private final RefreshAheadCache<String, String[]> members;
+
+    public RemoteGroupMemberIndex(long ttlMillis, MemberLoader loader, Executor refreshExecutor) {
+        this.loader = loader;
+        this.members = new RefreshAheadCache<>("members of group", ttlMillis, MAX_GROUPS, refreshExecutor);
+    }
+
+    /**
+     * @return the sorted ids of the group's members, loading them only if they are not known yet or their TTL has passed.
+     * Empty if that load fails; the failure is not cached. The array must not be modified.
+     */
+    public String[] getMembers(String group) {
+        try {
+            return members.get(group, () -> load(group));
+        } catch (IOException | RuntimeException e) {
+            logger.warnf("Loading members of group %s failed: %s", group, e.getMessage());
+            return NO_MEMBERS;
+        }
+    }
+
+    public void clear() {
+        members.clear();
+    }
+
+    private String[] load(String group) throws IOException {
+        Collection<String> ids = loader.load(group);
+        if (ids == null || ids.isEmpty()) {
+            return NO_MEMBERS;
+        }
+        return ids.stream().distinct().sorted().toArray(String[]::new);
+    }
+}
@@ -0,0 +1,91 @@
+package fis.baolm2.keycloak.cache;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Short-lived cache of search result pages, so paging back and forth through the same search, or rendering it again,
+ * does not query the remote server each time. <br>
+ * A page is kept as the ids of its users only; the users themselves are resolved through {@link RemoteUserCache},
+ * and a page with any user no longer cached there counts as a miss.
+ */
+public class RemoteSearchCache {
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    public RemoteSearchCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    public boolean isEnabled() {
+        return ttlMillis > 0 && maxEntries > 0;
+    }
+
+    /**
+     * Identifies a search page by its search params and window, independent of the params' iteration order.
+     * Values are kept exactly as they are sent to the search endpoint; paging params are replaced by the window.
+     */
+    public record Key(Map<String, String> params, int firstResult, Integer maxResults) {
+        public Key {
+            TreeMap<String, String> query = new TreeMap<>(params);
+            query.remove("skip");
+            query.remove("take");
+            params = Collections.unmodifiableSortedMap(query);
+        }
+    }
+
+    /**
+     * Builds the cache key of a search page.
+     */
+    public static Key key(Map<String, String> params, Integer firstResult, Integer maxResults) {
+        return new Key(params, firstResult == null ? 0 : firstResult, maxResults);
+    }
+
+    /**
+     * @return the ids of the users on the page, in order, or {@code null} if the page is not cached or expired.
+     */
+    public List<String> get(Key key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.ids;
+    }
+
+    public void put(Key key, List<String> ids) {
+        if (!isEnabled()) {
+            return;
+        }
+        entries.put(key, new Entry(List.copyOf(ids), System.currentTimeMillis() + ttlMillis));
+        if (entries.size() > maxEntries) {
+            entries.entrySet().stream()
+                    .min(Comparator.comparingLong(e -> e.getValue().expiresAt))
+                    .ifPresent(eldest -> entries.remove(eldest.getKey(), eldest.getValue()));
+        }
+    }
+
+    public void invalidate(Key key) {
+        entries.remove(key);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private record Entry(List<String> ids, long expiresAt) {
+    }
+}
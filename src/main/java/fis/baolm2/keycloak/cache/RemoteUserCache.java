@@ -0,0 +1,497 @@
+package fis.baolm2.keycloak.cache;
+
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Cross-session cache of remote users, owned by the provider factory and shared by every {@code KeycloakSession}. <br>
+ * Entries are stored once by id; username and email are secondary keys pointing at the same entry.
+ * Lookups that the remote server answered with "not found" are remembered for a shorter time (negative caching).
+ * Optionally a {@link SecondLevel} cache shared with the other nodes is consulted before reporting a miss,
+ * and a {@link RemoteAttributeIndex} makes the cached users searchable by attribute.
+ */
+public class RemoteUserCache {
+
+    public static final String TYPE_ID = "id";
+    public static final String TYPE_USERNAME = "username";
+    public static final String TYPE_EMAIL = "email";
+
+    /**
+     * Notified after users are cached or invalidated, outside of the cache lock.
+     */
+    public interface Listener {
+        void onPut(RemoteUserEntity entity, long expiresAt);
+
+        void onInvalidate(String id);
+
+        /**
+         * Called when a user is dropped from this cache only, because it was evicted for space or changed on another node.
+         */
+        default void onEvict(String id) {
+        }
+    }
+
+    /**
+     * Cache shared with other nodes, consulted when a user is not cached locally.
+     */
+    public interface SecondLevel {
+        /**
+         * @return the shared user, or {@code null} if it is not in the shared cache.
+         */
+        RemoteUserEntity get(String type, String key);
+    }
+
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final int maxSize;
+    private final RemoteAttributeIndex attributeIndex;
+
+    // Access ordered, so the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, String> usernames = new HashMap<>();
+    private final Map<String, String> emails = new HashMap<>();
+    private final LinkedHashMap<String, Long> missing = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder secondLevelHits = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile SecondLevel secondLevel;
+
+    public RemoteUserCache(long ttlMillis, long negativeTtlMillis, int maxSize) {
+        this(ttlMillis, negativeTtlMillis, maxSize, null);
+    }
+
+    /**
+     * @param attributeIndex index of the cached users' attributes, {@code null} for none.
+     */
+    public RemoteUserCache(long ttlMillis, long negativeTtlMillis, int maxSize, RemoteAttributeIndex attributeIndex) {
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.maxSize = maxSize;
+        this.attributeIndex = attributeIndex;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void setSecondLevel(SecondLevel secondLevel) {
+        this.secondLevel = secondLevel;
+    }
+
+    public boolean isEnabled() {
+        return ttlMillis > 0 && maxSize > 0;
+    }
+
+    /**
+     * Looks up a user by one of its keys.
+     *
+     * @param type one of {@link #TYPE_ID}, {@link #TYPE_USERNAME} or {@link #TYPE_EMAIL}
+     * @param key  the value to look up
+     * @return the cached entry, an entry without entity if the user is known to be missing, or {@code null} on a cache miss.
+     */
+    public Entry get(String type, String key) {
+        if (!isEnabled() || key == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            String id = resolveId(type, key);
+            Entry entry = id == null ? null : entries.get(id);
+            if (entry != null && entry.expiresAt > now) {
+                hits.increment();
+                return entry;
+            }
+            Long missingUntil = missing.get(missingKey(type, key));
+            if (missingUntil != null && missingUntil > now) {
+                negativeHits.increment();
+                return Entry.MISSING;
+            }
+        }
+        SecondLevel shared = secondLevel;
+        RemoteUserEntity entity = shared == null ? null : shared.get(type, key);
+        // A username or email key of the shared cache may still point at a user that was renamed since
+        if (entity != null && entity.getId() != null && matches(type, key, entity)) {
+            secondLevelHits.increment();
+            Entry entry = new Entry(entity, now + ttlMillis);
+            putEntry(entry, now);
+            return entry;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Looks up a user ignoring its TTL, for use while the remote server is unavailable. Expired users are kept until they are evicted.
+     *
+     * @return the cached user even if it expired, or {@code null} if it is not cached.
+     */
+    public RemoteUserEntity getStale(String type, String key) {
+        if (!isEnabled() || key == null) {
+            return null;
+        }
+        synchronized (this) {
+            String id = resolveId(type, key);
+            Entry entry = id == null ? null : entries.get(id);
+            if (entry != null) {
+                staleHits.increment();
+                return entry.entity;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the cached users holding an attribute value.
+     *
+     * @return the unexpired users with the value, or {@code null} if the attribute is not indexed.
+     */
+    public List<RemoteUserEntity> findByAttribute(String name, String value) {
+        if (attributeIndex == null || !attributeIndex.isIndexed(name) || !isEnabled()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        List<RemoteUserEntity> users = new ArrayList<>();
+        synchronized (this) {
+            for (String id : attributeIndex.find(name, value)) {
+                Entry entry = entries.get(id);
+                if (entry != null && entry.expiresAt > now) {
+                    users.add(entry.entity);
+                }
+            }
+        }
+        return users;
+    }
+
+    public void put(RemoteUserEntity entity) {
+        put(entity, ttlMillis);
+    }
+
+    /**
+     * Looks up an expired user that can be revalidated with the remote server instead of being fetched again.
+     *
+     * @return the expired user if it has response validators, otherwise {@code null}.
+     */
+    public RemoteUserEntity getRevalidatable(String type, String key) {
+        if (!isEnabled() || key == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            String id = resolveId(type, key);
+            Entry entry = id == null ? null : entries.get(id);
+            return entry != null && entry.expiresAt <= now && entry.entity.hasValidators() ? entry.entity : null;
+        }
+    }
+
+    /**
+     * Starts a new TTL for a user the remote server confirmed to be unchanged.
+     */
+    public void renew(RemoteUserEntity entity) {
+        revalidations.increment();
+        put(entity, ttlMillis);
+    }
+
+    /**
+     * Caches a user for a given time, e.g. longer than the configured TTL for users imported by a synchronization.
+     *
+     * @return {@code true} if the user replaced a cached entry.
+     */
+    public boolean put(RemoteUserEntity entity, long entryTtlMillis) {
+        if (!isEnabled() || entity == null || entity.getId() == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + entryTtlMillis;
+        boolean replaced = putEntry(new Entry(entity, expiresAt), now);
+        for (Listener listener : listeners) {
+            listener.onPut(entity, expiresAt);
+        }
+        return replaced;
+    }
+
+    /**
+     * Caches a user only if it is not cached yet, without notifying the listeners. Used for users read in bulk,
+     * e.g. from search results, which must neither replace fresher entries nor be broadcast row by row.
+     * An expired entry that can still be revalidated is kept as well.
+     *
+     * @return {@code true} if the user was added.
+     */
+    public boolean putIfAbsent(RemoteUserEntity entity) {
+        if (!isEnabled() || entity == null || entity.getId() == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        List<String> evicted = new ArrayList<>(0);
+        synchronized (this) {
+            Entry current = entries.get(entity.getId());
+            if (current != null && (current.expiresAt > now || current.entity.hasValidators())) {
+                return false;
+            }
+            putEntryLocked(new Entry(entity, now + ttlMillis), now, evicted);
+        }
+        notifyEvicted(evicted);
+        return true;
+    }
+
+    /**
+     * Restores a user without notifying the listeners, unless it was cached meanwhile. Used to warm the cache from a snapshot.
+     * The expiry is capped at the configured TTL, so entries written under a longer TTL do not outlive it.
+     */
+    public void restore(RemoteUserEntity entity, long expiresAt) {
+        if (!isEnabled() || entity == null || entity.getId() == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<String> evicted = new ArrayList<>(0);
+        synchronized (this) {
+            if (entries.containsKey(entity.getId())) {
+                return;
+            }
+            putEntryLocked(new Entry(entity, Math.min(expiresAt, now + ttlMillis)), now, evicted);
+        }
+        notifyEvicted(evicted);
+    }
+
+    private boolean putEntry(Entry entry, long now) {
+        List<String> evicted = new ArrayList<>(0);
+        boolean replaced;
+        synchronized (this) {
+            replaced = putEntryLocked(entry, now, evicted);
+        }
+        notifyEvicted(evicted);
+        return replaced;
+    }
+
+    private boolean putEntryLocked(Entry entry, long now, List<String> evicted) {
+        RemoteUserEntity entity = entry.entity;
+        Entry previous = entries.put(entity.getId(), entry);
+        if (previous != null) {
+            unindex(previous.entity);
+        }
+        index(entity);
+        missing.remove(missingKey(TYPE_ID, entity.getId()));
+        missing.remove(missingKey(TYPE_USERNAME, entity.getUserName()));
+        missing.remove(missingKey(TYPE_EMAIL, entity.getEmail()));
+        evictEldest(now, evicted);
+        return previous != null;
+    }
+
+    private void notifyEvicted(List<String> evicted) {
+        for (String id : evicted) {
+            for (Listener listener : listeners) {
+                listener.onEvict(id);
+            }
+        }
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Remembers that the remote server does not know the given key.
+     */
+    public void putMissing(String type, String key) {
+        if (!isEnabled() || negativeTtlMillis <= 0 || key == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            missing.put(missingKey(type, key), now + negativeTtlMillis);
+            Iterator<Long> iterator = missing.values().iterator();
+            while (missing.size() > maxSize && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    public void invalidate(String id) {
+        evict(id);
+        for (Listener listener : listeners) {
+            listener.onInvalidate(id);
+        }
+    }
+
+    /**
+     * Removes a user from this cache only, notifying the listeners with {@link Listener#onEvict} instead of an invalidation.
+     * Used when another node changed the user.
+     */
+    public void evict(String id) {
+        Entry previous;
+        synchronized (this) {
+            previous = entries.remove(id);
+            if (previous != null) {
+                unindex(previous.entity);
+            }
+        }
+        if (previous != null) {
+            notifyEvicted(List.of(id));
+        }
+    }
+
+    /**
+     * Passes every cached user with its expiry to the consumer, least recently used first. Expired users are included.
+     */
+    public void forEach(ObjLongConsumer<RemoteUserEntity> consumer) {
+        List<Entry> copy;
+        synchronized (this) {
+            copy = new ArrayList<>(entries.values());
+        }
+        for (Entry entry : copy) {
+            consumer.accept(entry.entity, entry.expiresAt);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        usernames.clear();
+        emails.clear();
+        missing.clear();
+        if (attributeIndex != null) {
+            attributeIndex.clear();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    public long getSecondLevelHits() {
+        return secondLevelHits.sum();
+    }
+
+    public long getRevalidations() {
+        return revalidations.sum();
+    }
+
+    private String resolveId(String type, String key) {
+        return switch (type) {
+            case TYPE_USERNAME -> usernames.get(normalize(key));
+            case TYPE_EMAIL -> emails.get(normalize(key));
+            default -> key;
+        };
+    }
+
+    private void evictEldest(long now, List<String> evicted) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (entries.size() > maxSize && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            unindex(eldest.entity);
+            evicted.add(eldest.entity.getId());
+            if (eldest.expiresAt > now) {
+                evictions.increment();
+            }
+        }
+    }
+
+    private void index(RemoteUserEntity entity) {
+        if (entity.getUserName() != null) {
+            usernames.put(normalize(entity.getUserName()), entity.getId());
+        }
+        if (entity.getEmail() != null) {
+            emails.put(normalize(entity.getEmail()), entity.getId());
+        }
+        if (attributeIndex != null) {
+            attributeIndex.add(entity);
+        }
+    }
+
+    private void unindex(RemoteUserEntity entity) {
+        if (entity.getUserName() != null) {
+            usernames.remove(normalize(entity.getUserName()), entity.getId());
+        }
+        if (entity.getEmail() != null) {
+            emails.remove(normalize(entity.getEmail()), entity.getId());
+        }
+        if (attributeIndex != null) {
+            attributeIndex.remove(entity);
+        }
+    }
+
+    private static boolean matches(String type, String key, RemoteUserEntity entity) {
+        return switch (type) {
+            case TYPE_USERNAME -> entity.getUserName() != null && normalize(entity.getUserName()).equals(normalize(key));
+            case TYPE_EMAIL -> entity.getEmail() != null && normalize(entity.getEmail()).equals(normalize(key));
+            default -> entity.getId().equals(key);
+        };
+    }
+
+    private static String missingKey(String type, String key) {
+        return type + ":" + (TYPE_ID.equals(type) || key == null ? key : normalize(key));
+    }
+
+    private static String normalize(String key) {
+        return key.toLowerCase(Locale.ROOT);
+    }
+
+    public static final class Entry {
+        static final Entry MISSING = new Entry(null, Long.MAX_VALUE);
+
+        private final RemoteUserEntity entity;
+        private final long expiresAt;
+
+        Entry(RemoteUserEntity entity, long expiresAt) {
+            this.entity = entity;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return the cached user, or {@code null} if the user is known to be missing on the remote server.
+         */
+        public RemoteUserEntity getEntity() {
+            return entity;
+        }
+
+        public boolean isMissing() {
+            return entity == null;
+        }
+    }
+}
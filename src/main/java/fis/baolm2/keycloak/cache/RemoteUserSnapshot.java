@@ -0,0 +1,310 @@
+package fis.baolm2.keycloak.cache;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORMapper;
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+import org.jboss.logging.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Local snapshot file of a {@link RemoteUserCache}, so a restarted node starts with a warm cache. <br>
+ * Cache changes are appended to the file in the background about once a second, and the file is periodically compacted
+ * by rewriting it from the cache content. On load the file is memory-mapped and replayed; records failing their checksum,
+ * usually a write torn by a crash, end the replay, and users that expired in the meantime are skipped.
+ * Restored users live at most the configured TTL from the time of the restart. Invalidated and evicted users are
+ * recorded as removals, so they do not come back.
+ * <p>
+ * Layout: a header of magic and format version, followed by records of
+ * {@code kind (1 byte) | expiresAt (8) | payload length (4) | payload | CRC32 of everything before (4)}.
+ * The payload is the CBOR encoded user of a put, or the UTF-8 id of an invalidation or eviction.
+ */
+public class RemoteUserSnapshot implements RemoteUserCache.Listener, AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(RemoteUserSnapshot.class);
+
+    private static final int MAGIC = 0x52555343;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 1 + 8 + 4;
+    private static final int CHECKSUM_SIZE = 4;
+    private static final byte KIND_PUT = 1;
+    private static final byte KIND_INVALIDATE = 2;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final String FILE_SUFFIX = ".snapshot";
+
+    private static final CBORMapper CBOR = new CBORMapper();
+    private static final ObjectWriter WRITER = CBOR.writerFor(RemoteUserEntity.class);
+    private static final ObjectReader READER = CBOR.readerFor(RemoteUserEntity.class);
+
+    private final Path file;
+    private final RemoteUserCache cache;
+    private final Queue<PendingRecord> pending = new ConcurrentLinkedQueue<>();
+    private final ScheduledFuture<?> flushTask;
+    private final ScheduledFuture<?> compactionTask;
+
+    // Guarded by this
+    private FileChannel channel;
+    // Written under this, read without lock by the listener methods
+    private volatile boolean closed;
+
+    public RemoteUserSnapshot(Path directory, String componentId, RemoteUserCache cache, long compactionIntervalMillis,
+                              ScheduledExecutorService scheduler, Executor executor) {
+        this.file = file(directory, componentId);
+        this.cache = cache;
+        this.flushTask = scheduler.scheduleWithFixedDelay(() -> run(executor, this::flush),
+                FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        this.compactionTask = compactionIntervalMillis > 0
+                ? scheduler.scheduleWithFixedDelay(() -> run(executor, this::compact), compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS)
+                : null;
+    }
+
+    public static Path file(Path directory, String componentId) {
+        return directory.resolve(componentId + FILE_SUFFIX);
+    }
+
+    /**
+     * Loads the snapshot in the background, so the first session does not wait for the file to be read.
+     * Until it is loaded, the cache fills from the remote server as usual.
+     */
+    public void loadAsync(Executor executor) {
+        try {
+            executor.execute(this::load);
+        } catch (RejectedExecutionException e) {
+            logger.debugf("Not loading user cache snapshot %s, shutting down", file);
+        }
+    }
+
+    /**
+     * Starts recording cache changes, restores the users of the snapshot into the cache without replacing users cached
+     * meanwhile, then compacts the file and opens it for appending.
+     *
+     * @return the number of restored users.
+     */
+    public int load() {
+        synchronized (this) {
+            if (closed) {
+                return 0;
+            }
+        }
+        // Changes made while loading are pending, and written with the compaction below at the latest
+        cache.addListener(this);
+        if (closed) {
+            cache.removeListener(this);
+            return 0;
+        }
+        int restored = 0;
+        if (Files.exists(file)) {
+            try {
+                Map<String, PendingRecord> users = replay();
+                long now = System.currentTimeMillis();
+                for (PendingRecord record : users.values()) {
+                    if (record.expiresAt > now) {
+                        cache.restore(record.entity, record.expiresAt);
+                        restored++;
+                    }
+                }
+                logger.infof("Restored %d of %d users from snapshot %s", restored, users.size(), file);
+            } catch (IOException | RuntimeException e) {
+                logger.warnf("Ignoring unreadable user cache snapshot %s: %s", file, e.getMessage());
+            }
+        }
+        compact();
+        return restored;
+    }
+
+    @Override
+    public void onPut(RemoteUserEntity entity, long expiresAt) {
+        if (closed) {
+            return;
+        }
+        pending.add(new PendingRecord(KIND_PUT, entity.getId(), entity, expiresAt));
+    }
+
+    @Override
+    public void onInvalidate(String id) {
+        if (!closed) {
+            pending.add(new PendingRecord(KIND_INVALIDATE, id, null, 0));
+        }
+    }
+
+    @Override
+    public void onEvict(String id) {
+        onInvalidate(id);
+    }
+
+    /**
+     * Appends the pending cache changes to the snapshot file.
+     */
+    public synchronized void flush() {
+        if (channel == null) {
+            pending.clear();
+            return;
+        }
+        PendingRecord record;
+        try {
+            while ((record = pending.poll()) != null) {
+                ByteBuffer buffer = ByteBuffer.wrap(encode(record));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } catch (IOException e) {
+            logger.warnf("Appending to user cache snapshot %s failed: %s", file, e.getMessage());
+            pending.clear();
+        }
+    }
+
+    /**
+     * Rewrites the snapshot file from the current cache content, dropping superseded and invalidated records.
+     */
+    public synchronized void compact() {
+        if (closed && channel == null) {
+            return;
+        }
+        // Changes made from now on are either part of the rewrite or appended after it, so the pending ones are obsolete
+        pending.clear();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+                out.write(ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putInt(VERSION).array());
+                long now = System.currentTimeMillis();
+                IOException[] failure = new IOException[1];
+                cache.forEach((entity, expiresAt) -> {
+                    if (failure[0] != null || expiresAt <= now) {
+                        return;
+                    }
+                    try {
+                        out.write(encode(new PendingRecord(KIND_PUT, entity.getId(), entity, expiresAt)));
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                });
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+            }
+            closeChannel();
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (!closed) {
+                channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException e) {
+            logger.warnf("Compacting user cache snapshot %s failed: %s", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the background work and leaves a compacted snapshot behind.
+     */
+    @Override
+    public void close() {
+        cache.removeListener(this);
+        flushTask.cancel(false);
+        if (compactionTask != null) {
+            compactionTask.cancel(false);
+        }
+        synchronized (this) {
+            closed = true;
+            compact();
+            closeChannel();
+        }
+    }
+
+    private Map<String, PendingRecord> replay() throws IOException {
+        Map<String, PendingRecord> users = new LinkedHashMap<>();
+        try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = input.size();
+            if (size < FILE_HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("unexpected size " + size);
+            }
+            MappedByteBuffer buffer = input.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("unknown format");
+            }
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= RECORD_HEADER_SIZE + CHECKSUM_SIZE) {
+                int start = buffer.position();
+                byte kind = buffer.get();
+                long expiresAt = buffer.getLong();
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining() - CHECKSUM_SIZE) {
+                    logger.warnf("Truncated record at offset %d of snapshot %s, ignoring the rest", start, file);
+                    break;
+                }
+                crc.reset();
+                crc.update(buffer.slice(start, RECORD_HEADER_SIZE + length));
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                if ((int) crc.getValue() != buffer.getInt()) {
+                    logger.warnf("Corrupt record at offset %d of snapshot %s, ignoring the rest", start, file);
+                    break;
+                }
+                if (kind == KIND_PUT) {
+                    RemoteUserEntity entity = READER.readValue(payload);
+                    // Re-inserting keeps the most recently cached users last, as in the cache
+                    users.remove(entity.getId());
+                    users.put(entity.getId(), new PendingRecord(KIND_PUT, entity.getId(), entity, expiresAt));
+                } else if (kind == KIND_INVALIDATE) {
+                    users.remove(new String(payload, StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return users;
+    }
+
+    private static byte[] encode(PendingRecord record) throws IOException {
+        byte[] payload = record.kind == KIND_PUT ? WRITER.writeValueAsBytes(record.entity) : record.id.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length + CHECKSUM_SIZE);
+        buffer.put(record.kind).putLong(record.expiresAt).putInt(payload.length).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debugf("Closing user cache snapshot %s failed: %s", file, e.getMessage());
+        }
+        channel = null;
+    }
+
+    private static void run(Executor executor, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, close() takes care of the final compaction
+        }
+    }
+
+    private record PendingRecord(byte kind, String id, RemoteUserEntity entity, long expiresAt) {
+    }
+}
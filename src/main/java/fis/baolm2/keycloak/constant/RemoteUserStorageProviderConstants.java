@@ -5,12 +5,83 @@ public class RemoteUserStorageProviderConstants {
     public static final String REMOTE_PROVIDER_URL = "url";
     public static final String FIND_USER_ENDPOINT = "find_user_endpoint";
     public static final String VERIFY_USER_ENDPOINT = "verify_user_endpoint";
+    public static final String AUTHENTICATE_USER_ENDPOINT = "authenticate_user_endpoint";
     public static final String SEARCH_USER_ENDPOINT = "search_user_endpoint";
     public static final String COUNT_USER_ENDPOINT = "count_user_endpoint";
+    public static final String BULK_FIND_USER_ENDPOINT = "bulk_find_user_endpoint";
+    public static final String GROUP_MEMBERS_ENDPOINT = "group_members_endpoint";
+    public static final String GROUP_MEMBERS_CACHE_TTL = "group_members_cache_ttl";
+    public static final String BATCH_WINDOW = "batch_window";
+    public static final String BATCH_MAX_SIZE = "batch_max_size";
+    public static final String SYNC_BATCH_SIZE = "sync_batch_size";
+    public static final String SYNC_PARALLELISM = "sync_parallelism";
     public static final String ADD_ROLES_TO_TOKEN = "add_role_to_token";
+    public static final String ROLE_PROVISIONING_POLICY = "role_provisioning_policy";
     public static final String AUTHORIZATION_USERNAME = "authorization_username";
     public static final String AUTHORIZATION_PASSWORD = "authorization_password";
+    public static final String HTTP_MAX_CONNECTIONS = "http_max_connections";
+    public static final String HTTP_KEEP_ALIVE = "http_keep_alive";
+    public static final String HTTP_CONNECT_TIMEOUT = "http_connect_timeout";
+    public static final String HTTP_READ_TIMEOUT = "http_read_timeout";
+    public static final String FIND_DEADLINE = "find_deadline";
+    public static final String VERIFY_DEADLINE = "verify_deadline";
+    public static final String SEARCH_DEADLINE = "search_deadline";
+    public static final String COUNT_DEADLINE = "count_deadline";
+    public static final String BULKHEAD_MAX_CONCURRENT = "bulkhead_max_concurrent";
+    public static final String CIRCUIT_FAILURE_THRESHOLD = "circuit_failure_threshold";
+    public static final String CIRCUIT_OPEN_DURATION = "circuit_open_duration";
+    public static final String EJECTION_FAILURE_THRESHOLD = "ejection_failure_threshold";
+    public static final String EJECTION_DURATION = "ejection_duration";
+    public static final String HEDGING_ENABLED = "hedging_enabled";
+    public static final String BINARY_FORMAT_ENABLED = "binary_format_enabled";
+    public static final String SEARCH_PAGE_SIZE = "search_page_size";
+    public static final String SEARCH_PREFETCH_ENABLED = "search_prefetch_enabled";
+    public static final String SEARCH_PARALLELISM = "search_parallelism";
+    public static final String COUNT_CACHE_TTL = "count_cache_ttl";
+    public static final String SEARCH_CACHE_TTL = "search_cache_ttl";
+    public static final String SEARCH_CACHE_MAX_SIZE = "search_cache_max_size";
+    public static final String USER_CACHE_TTL = "user_cache_ttl";
+    public static final String USER_CACHE_NEGATIVE_TTL = "user_cache_negative_ttl";
+    public static final String USER_CACHE_MAX_SIZE = "user_cache_max_size";
+    public static final String CACHE_MODE = "cache_mode";
+    public static final String CLUSTER_CACHE_NAME = "cluster_cache_name";
+    public static final String SNAPSHOT_DIRECTORY = "snapshot_directory";
+    public static final String SNAPSHOT_COMPACTION_INTERVAL = "snapshot_compaction_interval";
+    public static final String INDEXED_ATTRIBUTES = "indexed_attributes";
+    public static final String ATTRIBUTE_SEARCH_REMOTE = "attribute_search_remote";
+    public static final String LOGIN_LIMIT_PER_USERNAME = "login_limit_per_username";
+    public static final String LOGIN_LIMIT_PER_SOURCE = "login_limit_per_source";
+    public static final String LOGIN_FAILURE_MEMORY = "login_failure_memory";
 
     public static final int URL_MIN_LENGTH = 10;
+    public static final int DEFAULT_HTTP_MAX_CONNECTIONS = 50;
+    public static final int DEFAULT_HTTP_KEEP_ALIVE = 60;
+    public static final int DEFAULT_HTTP_CONNECT_TIMEOUT = 2000;
+    public static final int DEFAULT_HTTP_READ_TIMEOUT = 5000;
+    public static final int DEFAULT_FIND_DEADLINE = 2000;
+    public static final int DEFAULT_VERIFY_DEADLINE = 3000;
+    public static final int DEFAULT_SEARCH_DEADLINE = 10000;
+    public static final int DEFAULT_COUNT_DEADLINE = 5000;
+    public static final int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 5;
+    public static final int DEFAULT_CIRCUIT_OPEN_DURATION = 30;
+    public static final int DEFAULT_EJECTION_FAILURE_THRESHOLD = 3;
+    public static final int DEFAULT_EJECTION_DURATION = 30;
+    public static final int DEFAULT_SEARCH_PAGE_SIZE = 100;
+    public static final int DEFAULT_SEARCH_PARALLELISM = 1;
+    public static final int DEFAULT_COUNT_CACHE_TTL = 30;
+    public static final int DEFAULT_SEARCH_CACHE_TTL = 10;
+    public static final int DEFAULT_SEARCH_CACHE_MAX_SIZE = 500;
+    public static final int DEFAULT_GROUP_MEMBERS_CACHE_TTL = 300;
+    public static final int DEFAULT_BATCH_WINDOW = 5;
+    public static final int DEFAULT_BATCH_MAX_SIZE = 50;
+    public static final int DEFAULT_SYNC_BATCH_SIZE = 500;
+    public static final int DEFAULT_SYNC_PARALLELISM = 2;
+    public static final int DEFAULT_USER_CACHE_TTL = 60;
+    public static final int DEFAULT_USER_CACHE_NEGATIVE_TTL = 10;
+    public static final int DEFAULT_USER_CACHE_MAX_SIZE = 10000;
+    public static final int DEFAULT_SNAPSHOT_COMPACTION_INTERVAL = 300;
+    public static final int DEFAULT_LOGIN_LIMIT_PER_USERNAME = 0;
+    public static final int DEFAULT_LOGIN_LIMIT_PER_SOURCE = 0;
+    public static final int DEFAULT_LOGIN_FAILURE_MEMORY = 0;
     public static final String DEBUG_ENABLED = "debug_log_enabled";
 }
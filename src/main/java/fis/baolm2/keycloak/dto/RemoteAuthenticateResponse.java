@@ -0,0 +1,4 @@
+package fis.baolm2.keycloak.dto;
+
+public record RemoteAuthenticateResponse(Boolean isValid, RemoteUserEntity user) {
+}
@@ -0,0 +1,9 @@
+package fis.baolm2.keycloak.dto;
+
+import java.util.Collection;
+
+public record RemoteBulkFindInput(
+        String type,
+        Collection<String> values
+) {
+}
@@ -1,6 +1,9 @@
 package fis.baolm2.keycloak.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.util.Map;
+import java.util.Set;
 
 public class RemoteUserEntity {
     private String id;
@@ -11,8 +14,17 @@ public class RemoteUserEntity {
     private boolean emailVerified;
     private boolean enabled;
     private String createdAt;
+    private String updatedAt;
     private Map<String, String> attributes;
     private String roles;
+    // Parsed form of roles, kept with the entity so it is only parsed once while the entity is cached
+    @JsonIgnore
+    private transient Set<String> roleNames;
+    // Validators of the response the entity was read from, used to revalidate it once it expires in the cache
+    @JsonIgnore
+    private transient String etag;
+    @JsonIgnore
+    private transient String lastModified;
 
     public RemoteUserEntity() {
     }
@@ -30,6 +42,14 @@ public class RemoteUserEntity {
         this.roles = roles;
     }
 
+    public String getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(String updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
     public Map<String, String> getAttributes() {
         return attributes;
     }
@@ -100,6 +120,42 @@ public class RemoteUserEntity {
 
     public void setRoles(String roles) {
         this.roles = roles;
+        this.roleNames = null;
+    }
+
+    @JsonIgnore
+    public Set<String> getRoleNames() {
+        return roleNames;
+    }
+
+    @JsonIgnore
+    public void setRoleNames(Set<String> roleNames) {
+        this.roleNames = roleNames;
+    }
+
+    @JsonIgnore
+    public String getEtag() {
+        return etag;
+    }
+
+    @JsonIgnore
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    @JsonIgnore
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    @JsonIgnore
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    @JsonIgnore
+    public boolean hasValidators() {
+        return etag != null || lastModified != null;
     }
 
     public String getUserName() {
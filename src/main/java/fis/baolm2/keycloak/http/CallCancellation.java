@@ -0,0 +1,37 @@
+package fis.baolm2.keycloak.http;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets another thread abort the remote calls made on behalf of one caller, e.g. the pages a closed stream no longer needs. <br>
+ * Requests started after {@link #cancel()} are aborted right away. Aborted calls are counted as cancelled, not as failures.
+ */
+public class CallCancellation {
+
+    private final Set<HttpRequestBase> requests = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+
+    public void cancel() {
+        cancelled = true;
+        requests.forEach(HttpRequestBase::abort);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void register(HttpRequestBase request) {
+        requests.add(request);
+        // Checked after publishing the request, so either cancel() sees it to abort it or this sees the cancellation
+        if (cancelled) {
+            request.abort();
+        }
+    }
+
+    void unregister(HttpRequestBase request) {
+        requests.remove(request);
+    }
+}
@@ -0,0 +1,92 @@
+package fis.baolm2.keycloak.http;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Circuit breaker for the remote user service. <br>
+ * After {@code failureThreshold} consecutive failures the circuit opens and calls fail fast. Once {@code openMillis} have passed,
+ * a single probe call is let through (half open): its success closes the circuit, its failure opens it again.
+ */
+public class CircuitBreaker {
+
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return {@code true} if a call may be made now.
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    return false;
+                }
+                transition(State.HALF_OPEN);
+                probeInFlight = true;
+                return true;
+            case HALF_OPEN:
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        if (state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    public synchronized void onFailure() {
+        probeInFlight = false;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (failureThreshold > 0 && consecutiveFailures >= failureThreshold && state == State.CLOSED)) {
+            openedAt = System.currentTimeMillis();
+            transition(State.OPEN);
+        }
+    }
+
+    /**
+     * Gives back a permit from {@link #tryAcquire()} that was not used for a remote call.
+     */
+    public synchronized void onRejected() {
+        probeInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void transition(State next) {
+        if (next == State.CLOSED) {
+            logger.infof("Remote user service %s is healthy again, circuit %s -> %s", name, state, next);
+        } else {
+            logger.warnf("Remote user service %s is degraded after %d consecutive failures, circuit %s -> %s", name, consecutiveFailures, state, next);
+        }
+        state = next;
+    }
+}
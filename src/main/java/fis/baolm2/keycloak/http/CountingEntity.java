@@ -0,0 +1,47 @@
+package fis.baolm2.keycloak.http;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response entity wrapper counting the body bytes read, also for chunked responses without a content length.
+ */
+class CountingEntity extends HttpEntityWrapper {
+
+    private long count;
+
+    CountingEntity(HttpEntity entity) {
+        super(entity);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new FilterInputStream(super.getContent()) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    count++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    count += read;
+                }
+                return read;
+            }
+        };
+    }
+}
@@ -0,0 +1,53 @@
+package fis.baolm2.keycloak.http;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Recent latencies of one endpoint, for the delay after which a call is hedged. <br>
+ * The last {@value #SAMPLES} successful call latencies are kept in a ring; the 95th percentile is recomputed from them
+ * at most once a second, so recording stays a single atomic write.
+ */
+class LatencyTracker {
+
+    private static final int SAMPLES = 512;
+    private static final int MIN_SAMPLES = 32;
+    private static final long RECOMPUTE_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+    private final AtomicInteger recorded = new AtomicInteger();
+
+    private volatile long p95Millis = -1;
+    private volatile long computedAt = System.nanoTime() - RECOMPUTE_INTERVAL_NANOS;
+
+    void record(long nanos) {
+        samples.set(Math.floorMod(recorded.getAndIncrement(), SAMPLES), nanos);
+    }
+
+    /**
+     * @return the 95th percentile latency in milliseconds, at least 1, or -1 while there are too few samples.
+     */
+    long p95Millis() {
+        long now = System.nanoTime();
+        if (now - computedAt >= RECOMPUTE_INTERVAL_NANOS) {
+            // Concurrent callers may both recompute, the results are equivalent
+            computedAt = now;
+            p95Millis = compute();
+        }
+        return p95Millis;
+    }
+
+    private long compute() {
+        int count = Math.min(recorded.get() & Integer.MAX_VALUE, SAMPLES);
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+        long[] copy = new long[count];
+        for (int i = 0; i < count; i++) {
+            copy[i] = samples.get(i);
+        }
+        Arrays.sort(copy);
+        return Math.max(1, copy[(int) (count * 0.95) - 1] / 1_000_000);
+    }
+}
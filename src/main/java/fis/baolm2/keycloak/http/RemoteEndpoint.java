@@ -0,0 +1,57 @@
+package fis.baolm2.keycloak.http;
+
+import static fis.baolm2.keycloak.constant.RemoteUserStorageProviderConstants.*;
+
+/**
+ * Endpoints of the remote user service, each with the provider config holding its path and its deadline budget.
+ */
+public enum RemoteEndpoint {
+    FIND(FIND_USER_ENDPOINT, FIND_DEADLINE, DEFAULT_FIND_DEADLINE, false, true),
+    BULK_FIND(BULK_FIND_USER_ENDPOINT, FIND_DEADLINE, DEFAULT_FIND_DEADLINE, true, true),
+    VERIFY(VERIFY_USER_ENDPOINT, VERIFY_DEADLINE, DEFAULT_VERIFY_DEADLINE, false, true),
+    AUTHENTICATE(AUTHENTICATE_USER_ENDPOINT, VERIFY_DEADLINE, DEFAULT_VERIFY_DEADLINE, false, true),
+    SEARCH(SEARCH_USER_ENDPOINT, SEARCH_DEADLINE, DEFAULT_SEARCH_DEADLINE, true, false),
+    COUNT(COUNT_USER_ENDPOINT, COUNT_DEADLINE, DEFAULT_COUNT_DEADLINE, false, false),
+    GROUP_MEMBERS(GROUP_MEMBERS_ENDPOINT, SEARCH_DEADLINE, DEFAULT_SEARCH_DEADLINE, true, false);
+
+    private final String pathProperty;
+    private final String deadlineProperty;
+    private final int defaultDeadline;
+    private final boolean compressed;
+    private final boolean login;
+
+    RemoteEndpoint(String pathProperty, String deadlineProperty, int defaultDeadline, boolean compressed, boolean login) {
+        this.pathProperty = pathProperty;
+        this.deadlineProperty = deadlineProperty;
+        this.defaultDeadline = defaultDeadline;
+        this.compressed = compressed;
+        this.login = login;
+    }
+
+    public String getPathProperty() {
+        return pathProperty;
+    }
+
+    public String getDeadlineProperty() {
+        return deadlineProperty;
+    }
+
+    public int getDefaultDeadline() {
+        return defaultDeadline;
+    }
+
+    /**
+     * @return {@code true} if responses are large enough, user and member lists, to be worth a gzip compressed transfer.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * @return {@code true} for the endpoints on the login path, which get a circuit breaker of their own,
+     * so failing admin listings and counts cannot open the circuit of logins.
+     */
+    public boolean isLogin() {
+        return login;
+    }
+}
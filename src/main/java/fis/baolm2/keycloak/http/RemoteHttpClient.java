@@ -0,0 +1,430 @@
+package fis.baolm2.keycloak.http;
+
+import fis.baolm2.keycloak.metrics.RemoteMetrics;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeader;
+import org.keycloak.component.ComponentModel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static fis.baolm2.keycloak.constant.RemoteUserStorageProviderConstants.*;
+import static fis.baolm2.keycloak.service.RemoteResponseReader.CBOR_CONTENT_TYPE;
+import static fis.baolm2.keycloak.service.RemoteResponseReader.JSON_CONTENT_TYPE;
+
+/**
+ * Pooled keep-alive HTTP client used to call the remote user service. <br>
+ * One instance is shared by all sessions of a component, so connections and TLS sessions are reused across logins.
+ * The Authorization header is computed once when the client is built.
+ * <p>
+ * Every call is guarded: it is aborted when the deadline budget of its endpoint runs out, at most a bulkhead's worth of calls
+ * are in flight at once, and a {@link CircuitBreaker} makes calls fail fast while the remote server keeps failing.
+ * Login endpoints and the admin endpoints (search, count, group members) each have their own circuit breaker.
+ * <p>
+ * The remote server may be several instances, see {@link RemoteInstanceBalancer}. With hedging enabled, a GET that has not
+ * been answered within the endpoint's recent 95th percentile latency is sent once more to another instance;
+ * the first answer is used and the other call is aborted.
+ */
+public class RemoteHttpClient implements Closeable {
+
+    private static final String UA = "Keycloak User Federation SPI";
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final Map<RemoteEndpoint, String> paths = new EnumMap<>(RemoteEndpoint.class);
+    private final RemoteInstanceBalancer balancer;
+    private final Map<RemoteEndpoint, LatencyTracker> latencies = new EnumMap<>(RemoteEndpoint.class);
+    private final ExecutorService hedgeExecutor;
+    private final Map<RemoteEndpoint, Integer> deadlines = new EnumMap<>(RemoteEndpoint.class);
+    private final Semaphore bulkhead;
+    private final long bulkheadWaitMillis;
+    private final long noDeadlineCallMillis;
+    private final CircuitBreaker loginCircuitBreaker;
+    private final CircuitBreaker adminCircuitBreaker;
+    private final ScheduledExecutorService scheduler;
+    private final RemoteMetrics metrics;
+
+    /**
+     * @param tlsSocketFactory socket factory for HTTPS connections, normally built from Keycloak's truststore,
+     *                         or {@code null} to use the JVM defaults.
+     */
+    public RemoteHttpClient(ComponentModel model, SSLConnectionSocketFactory tlsSocketFactory, ScheduledExecutorService scheduler, RemoteMetrics metrics) {
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.balancer = new RemoteInstanceBalancer(RemoteInstanceBalancer.parseBaseUrls(model.get(REMOTE_PROVIDER_URL)),
+                model.get(EJECTION_FAILURE_THRESHOLD, DEFAULT_EJECTION_FAILURE_THRESHOLD),
+                TimeUnit.SECONDS.toMillis(model.get(EJECTION_DURATION, DEFAULT_EJECTION_DURATION)));
+        boolean hedging = model.get(HEDGING_ENABLED, false) && balancer.size() > 1;
+        for (RemoteEndpoint endpoint : RemoteEndpoint.values()) {
+            String path = model.get(endpoint.getPathProperty());
+            if (path != null && !path.isBlank()) {
+                paths.put(endpoint, path);
+            }
+            deadlines.put(endpoint, model.get(endpoint.getDeadlineProperty(), endpoint.getDefaultDeadline()));
+            if (hedging) {
+                latencies.put(endpoint, new LatencyTracker());
+            }
+        }
+        this.hedgeExecutor = hedging ? Executors.newVirtualThreadPerTaskExecutor() : null;
+
+        int maxConnections = model.get(HTTP_MAX_CONNECTIONS, DEFAULT_HTTP_MAX_CONNECTIONS);
+        long keepAliveMillis = TimeUnit.SECONDS.toMillis(model.get(HTTP_KEEP_ALIVE, DEFAULT_HTTP_KEEP_ALIVE));
+        int connectTimeout = model.get(HTTP_CONNECT_TIMEOUT, DEFAULT_HTTP_CONNECT_TIMEOUT);
+        int readTimeout = model.get(HTTP_READ_TIMEOUT, DEFAULT_HTTP_READ_TIMEOUT);
+        this.bulkhead = new Semaphore(Math.max(1, model.get(BULKHEAD_MAX_CONCURRENT, maxConnections)));
+        this.bulkheadWaitMillis = connectTimeout;
+        this.noDeadlineCallMillis = (long) connectTimeout + readTimeout;
+        int circuitFailureThreshold = model.get(CIRCUIT_FAILURE_THRESHOLD, DEFAULT_CIRCUIT_FAILURE_THRESHOLD);
+        long circuitOpenMillis = TimeUnit.SECONDS.toMillis(model.get(CIRCUIT_OPEN_DURATION, DEFAULT_CIRCUIT_OPEN_DURATION));
+        this.loginCircuitBreaker = new CircuitBreaker(model.getName() + " login", circuitFailureThreshold, circuitOpenMillis);
+        this.adminCircuitBreaker = new CircuitBreaker(model.getName() + " admin", circuitFailureThreshold, circuitOpenMillis);
+        metrics.bindCircuitBreaker(loginCircuitBreaker, "login");
+        metrics.bindCircuitBreaker(adminCircuitBreaker, "admin");
+
+        this.connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", tlsSocketFactory != null ? tlsSocketFactory : SSLConnectionSocketFactory.getSystemSocketFactory())
+                .build());
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        List<Header> defaultHeaders = new ArrayList<>();
+        defaultHeaders.add(new BasicHeader(HttpHeaders.USER_AGENT, UA));
+        defaultHeaders.add(new BasicHeader(HttpHeaders.ACCEPT, model.get(BINARY_FORMAT_ENABLED, false)
+                ? CBOR_CONTENT_TYPE + ", " + JSON_CONTENT_TYPE + ";q=0.9"
+                : JSON_CONTENT_TYPE));
+        String authorizationUsername = model.get(AUTHORIZATION_USERNAME);
+        if (authorizationUsername != null && !authorizationUsername.isEmpty()) {
+            defaultHeaders.add(new BasicHeader(HttpHeaders.AUTHORIZATION, basicAuthorization(authorizationUsername, model.get(AUTHORIZATION_PASSWORD))));
+        }
+
+        this.httpClient = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                // Compression is negotiated per endpoint, small responses are not worth the server's compression work
+                .disableContentCompression()
+                .setDefaultHeaders(defaultHeaders)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeout)
+                        .setConnectionRequestTimeout(connectTimeout)
+                        .setSocketTimeout(readTimeout)
+                        .build())
+                .setKeepAliveStrategy((response, context) -> {
+                    long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    public boolean isConfigured(RemoteEndpoint endpoint) {
+        return paths.containsKey(endpoint);
+    }
+
+    /**
+     * @return milliseconds one call to the endpoint may take, including the wait for a bulkhead permit.
+     * Without a deadline, one connect and one read timeout are assumed.
+     */
+    public long getMaxCallMillis(RemoteEndpoint endpoint) {
+        int deadline = deadlines.get(endpoint);
+        return bulkheadWaitMillis + (deadline > 0 ? deadline : noDeadlineCallMillis);
+    }
+
+    public CircuitBreaker.State getCircuitState(RemoteEndpoint endpoint) {
+        return circuitBreaker(endpoint).getState();
+    }
+
+    private CircuitBreaker circuitBreaker(RemoteEndpoint endpoint) {
+        return endpoint.isLogin() ? loginCircuitBreaker : adminCircuitBreaker;
+    }
+
+    public <T> T get(RemoteEndpoint endpoint, Map<String, String> params, ResponseHandler<T> handler) throws IOException {
+        return get(endpoint, params, null, null, null, handler);
+    }
+
+    /**
+     * GET that is aborted, also while it is in flight, when the given cancellation is cancelled.
+     */
+    public <T> T get(RemoteEndpoint endpoint, Map<String, String> params, CallCancellation cancellation, ResponseHandler<T> handler) throws IOException {
+        return get(endpoint, params, null, null, cancellation, handler);
+    }
+
+    /**
+     * Conditional GET, answered with 304 Not Modified by the remote server if the resource still matches the validators.
+     *
+     * @param etag         sent as {@code If-None-Match} if not {@code null}
+     * @param lastModified sent as {@code If-Modified-Since} if not {@code null}
+     */
+    public <T> T get(RemoteEndpoint endpoint, Map<String, String> params, String etag, String lastModified, ResponseHandler<T> handler) throws IOException {
+        return get(endpoint, params, etag, lastModified, null, handler);
+    }
+
+    private <T> T get(RemoteEndpoint endpoint, Map<String, String> params, String etag, String lastModified,
+                      CallCancellation cancellation, ResponseHandler<T> handler) throws IOException {
+        String path = paths.get(endpoint);
+        String query;
+        try {
+            URIBuilder uri = new URIBuilder();
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                uri.addParameter(param.getKey(), param.getValue());
+            }
+            query = uri.build().toString();
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid remote request parameters " + params, e);
+        }
+        Function<RemoteInstanceBalancer.Instance, HttpRequestBase> requests = instance -> {
+            HttpGet get = new HttpGet(instance.getBaseUrl() + path + query);
+            if (etag != null) {
+                get.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+            }
+            if (lastModified != null) {
+                get.addHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+            }
+            return get;
+        };
+        LatencyTracker latency = latencies.get(endpoint);
+        long hedgeDelay = latency == null ? -1 : latency.p95Millis();
+        if (hedgeDelay >= 0) {
+            return executeHedged(endpoint, requests, handler, hedgeDelay, cancellation);
+        }
+        RemoteInstanceBalancer.Instance instance = balancer.choose(null);
+        return execute(endpoint, instance, requests.apply(instance), handler, deadlines.get(endpoint), null, cancellation);
+    }
+
+    public <T> T postJson(RemoteEndpoint endpoint, byte[] body, ResponseHandler<T> handler) throws IOException {
+        RemoteInstanceBalancer.Instance instance = balancer.choose(null);
+        HttpPost post = new HttpPost(instance.getBaseUrl() + paths.get(endpoint));
+        post.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        return execute(endpoint, instance, post, handler, deadlines.get(endpoint), null, null);
+    }
+
+    /**
+     * Runs the call on the calling thread and, if it has not been answered after {@code hedgeDelay} milliseconds,
+     * a second one to another instance on a virtual thread. The first successful answer wins and aborts the other call;
+     * if one call fails, the answer of the other is awaited.
+     */
+    private <T> T executeHedged(RemoteEndpoint endpoint, Function<RemoteInstanceBalancer.Instance, HttpRequestBase> requests,
+                                ResponseHandler<T> handler, long hedgeDelay, CallCancellation cancellation) throws IOException {
+        long start = System.nanoTime();
+        int deadline = deadlines.get(endpoint);
+        RemoteInstanceBalancer.Instance primaryInstance = balancer.choose(null);
+        HttpRequestBase primary = requests.apply(primaryInstance);
+        AtomicBoolean primaryCancelled = new AtomicBoolean();
+        AtomicBoolean hedgeCancelled = new AtomicBoolean();
+        AtomicReference<HttpRequestBase> hedgeRequest = new AtomicReference<>();
+        CompletableFuture<T> hedge = new CompletableFuture<>();
+        ScheduledFuture<?> hedgeTask = scheduler.schedule(() -> {
+            try {
+                hedgeExecutor.execute(() -> {
+                    RemoteInstanceBalancer.Instance instance = balancer.choose(primaryInstance);
+                    long remaining = deadline - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    if (instance == null || (deadline > 0 && remaining <= 0)) {
+                        hedge.cancel(false);
+                        return;
+                    }
+                    HttpRequestBase request = requests.apply(instance);
+                    hedgeRequest.set(request);
+                    // Checked after publishing the request, so the primary either sees it to abort it or this sees the cancellation
+                    if (hedgeCancelled.get()) {
+                        hedge.cancel(false);
+                        return;
+                    }
+                    metrics.endpoint(endpoint).hedged();
+                    try {
+                        T value = execute(endpoint, instance, request, handler, deadline > 0 ? (int) remaining : 0, hedgeCancelled, cancellation);
+                        if (hedge.complete(value)) {
+                            primaryCancelled.set(true);
+                            primary.abort();
+                        }
+                    } catch (Throwable e) {
+                        hedge.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                hedge.cancel(false);
+            }
+        }, hedgeDelay, TimeUnit.MILLISECONDS);
+        try {
+            return execute(endpoint, primaryInstance, primary, handler, deadline, primaryCancelled, cancellation);
+        } catch (IOException | RuntimeException e) {
+            if (hedgeTask.cancel(false)) {
+                throw e;
+            }
+            try {
+                T value = hedge.get();
+                metrics.endpoint(endpoint).hedgeWon();
+                return value;
+            } catch (ExecutionException | CancellationException hedgeFailure) {
+                if (primaryCancelled.get() && hedgeFailure.getCause() instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw e;
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                throw e;
+            }
+        } finally {
+            hedgeTask.cancel(false);
+            hedgeCancelled.set(true);
+            HttpRequestBase request = hedgeRequest.get();
+            if (request != null && !hedge.isDone()) {
+                request.abort();
+            }
+        }
+    }
+
+    /**
+     * @param deadline  milliseconds the call may take, 0 for no deadline.
+     * @param cancelled set before the request is aborted because another call answered, or {@code null} if it cannot be.
+     * @param cancellation aborts the request on behalf of the caller, or {@code null} if the caller cannot.
+     */
+    private <T> T execute(RemoteEndpoint endpoint, RemoteInstanceBalancer.Instance instance, HttpRequestBase request,
+                          ResponseHandler<T> handler, int deadline, AtomicBoolean cancelled, CallCancellation cancellation) throws IOException {
+        RemoteMetrics.EndpointMetrics endpointMetrics = metrics.endpoint(endpoint);
+        CircuitBreaker circuitBreaker = circuitBreaker(endpoint);
+        if (!circuitBreaker.tryAcquire()) {
+            endpointMetrics.rejected(RemoteMetrics.REJECTED_CIRCUIT_OPEN);
+            throw new RemoteUnavailableException("Remote user service circuit is open, " + endpoint + " call rejected");
+        }
+        boolean acquired;
+        try {
+            acquired = bulkhead.tryAcquire(bulkheadWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            // Not the remote server's fault, so the circuit breaker is not charged with it
+            circuitBreaker.onRejected();
+            endpointMetrics.rejected(RemoteMetrics.REJECTED_BULKHEAD_FULL);
+            throw new RemoteUnavailableException("Too many concurrent remote calls, " + endpoint + " call rejected");
+        }
+        AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> abort = deadline > 0 ? scheduler.schedule(() -> {
+            timedOut.set(true);
+            request.abort();
+        }, deadline, TimeUnit.MILLISECONDS) : null;
+        if (endpoint.isCompressed()) {
+            request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        }
+        if (cancellation != null) {
+            cancellation.register(request);
+        }
+        String outcome = RemoteMetrics.OUTCOME_IO_ERROR;
+        long start = System.nanoTime();
+        endpointMetrics.started();
+        instance.started();
+        try {
+            T result = httpClient.execute(request, response -> {
+                HttpEntity entity = response.getEntity();
+                if (entity == null) {
+                    return handler.handleResponse(response);
+                }
+                CountingEntity counting = new CountingEntity(entity);
+                Header encoding = entity.getContentEncoding();
+                response.setEntity(encoding != null && "gzip".equalsIgnoreCase(encoding.getValue()) ? new GzipDecompressingEntity(counting) : counting);
+                try {
+                    return handler.handleResponse(response);
+                } finally {
+                    endpointMetrics.responseSize(counting.getCount());
+                }
+            });
+            circuitBreaker.onSuccess();
+            outcome = RemoteMetrics.OUTCOME_SUCCESS;
+            LatencyTracker latency = latencies.get(endpoint);
+            if (latency != null) {
+                latency.record(System.nanoTime() - start);
+            }
+            return result;
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                circuitBreaker.onFailure();
+                outcome = RemoteMetrics.OUTCOME_SERVER_ERROR;
+            } else {
+                circuitBreaker.onSuccess();
+                outcome = RemoteMetrics.OUTCOME_CLIENT_ERROR;
+            }
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            if ((cancelled != null && cancelled.get()) || (cancellation != null && cancellation.isCancelled())) {
+                // Aborted because the other call of a hedged pair answered or the caller gave up, not a failure of the remote server
+                circuitBreaker.onRejected();
+                outcome = RemoteMetrics.OUTCOME_CANCELLED;
+                throw e;
+            }
+            circuitBreaker.onFailure();
+            if (timedOut.get() || e instanceof SocketTimeoutException) {
+                outcome = RemoteMetrics.OUTCOME_TIMEOUT;
+                throw new RemoteTimeoutException(endpoint + " call exceeded its deadline of " + deadline + "ms", e);
+            }
+            throw e;
+        } finally {
+            endpointMetrics.finished(outcome, System.nanoTime() - start);
+            instance.finished(!RemoteMetrics.OUTCOME_SUCCESS.equals(outcome) && !RemoteMetrics.OUTCOME_CLIENT_ERROR.equals(outcome)
+                    && !RemoteMetrics.OUTCOME_CANCELLED.equals(outcome));
+            if (abort != null) {
+                abort.cancel(false);
+            }
+            if (cancellation != null) {
+                cancellation.unregister(request);
+            }
+            bulkhead.release();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdownNow();
+        }
+        httpClient.close();
+        connectionManager.close();
+    }
+
+    private static String basicAuthorization(String username, String password) {
+        String credentials = username + ":" + (password == null ? "" : password);
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,117 @@
+package fis.baolm2.keycloak.http;
+
+import org.jboss.logging.Logger;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads remote calls over the instances of the remote user service. <br>
+ * Each call goes to the healthy instance with the fewest calls in flight, ties broken at random, so a slow instance
+ * automatically receives less traffic. An instance failing {@code failureThreshold} calls in a row is ejected for
+ * {@code ejectionMillis} (passive health checking); when every instance is ejected, the one returning first is used anyway.
+ */
+public class RemoteInstanceBalancer {
+
+    private static final Logger logger = Logger.getLogger(RemoteInstanceBalancer.class);
+
+    private final List<Instance> instances;
+    private final int failureThreshold;
+    private final long ejectionMillis;
+
+    /**
+     * @param baseUrls         base URLs of the instances, at least one.
+     * @param failureThreshold consecutive failures after which an instance is ejected, 0 to never eject.
+     */
+    public RemoteInstanceBalancer(List<String> baseUrls, int failureThreshold, long ejectionMillis) {
+        this.instances = baseUrls.stream().map(Instance::new).toList();
+        this.failureThreshold = failureThreshold;
+        this.ejectionMillis = ejectionMillis;
+    }
+
+    /**
+     * Parses a comma-separated list of base URLs.
+     */
+    public static List<String> parseBaseUrls(String urls) {
+        if (urls == null) {
+            return List.of();
+        }
+        return Arrays.stream(urls.split(","))
+                .map(String::trim)
+                .filter(url -> !url.isEmpty())
+                .toList();
+    }
+
+    public int size() {
+        return instances.size();
+    }
+
+    /**
+     * @param excluded an instance not to choose, e.g. the one a hedged call is already waiting for, or {@code null}.
+     * @return the instance to call, {@code null} only if there is no healthy instance other than {@code excluded}.
+     */
+    public Instance choose(Instance excluded) {
+        long now = System.currentTimeMillis();
+        int size = instances.size();
+        int start = size == 1 ? 0 : ThreadLocalRandom.current().nextInt(size);
+        Instance best = null;
+        Instance soonestBack = null;
+        for (int i = 0; i < size; i++) {
+            Instance instance = instances.get((start + i) % size);
+            if (instance == excluded) {
+                continue;
+            }
+            if (instance.ejectedUntil > now) {
+                if (soonestBack == null || instance.ejectedUntil < soonestBack.ejectedUntil) {
+                    soonestBack = instance;
+                }
+            } else if (best == null || instance.inFlight.get() < best.inFlight.get()) {
+                best = instance;
+            }
+        }
+        return best != null || excluded != null ? best : soonestBack;
+    }
+
+    /**
+     * One instance of the remote user service.
+     */
+    public final class Instance {
+
+        private final String baseUrl;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long ejectedUntil;
+
+        private Instance(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        public String getBaseUrl() {
+            return baseUrl;
+        }
+
+        void started() {
+            inFlight.incrementAndGet();
+        }
+
+        /**
+         * @param failed {@code true} if the instance failed the call, {@code false} if it answered or the call was cancelled.
+         */
+        void finished(boolean failed) {
+            inFlight.decrementAndGet();
+            if (!failed) {
+                if (consecutiveFailures.get() != 0) {
+                    consecutiveFailures.set(0);
+                }
+                return;
+            }
+            if (failureThreshold > 0 && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+                consecutiveFailures.set(0);
+                ejectedUntil = System.currentTimeMillis() + ejectionMillis;
+                logger.warnf("Remote user service instance %s failed %d calls in a row, ejected for %dms", baseUrl, failureThreshold, ejectionMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package fis.baolm2.keycloak.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a remote call does not complete within the deadline budget of its endpoint.
+ */
+public class RemoteTimeoutException extends IOException {
+    public RemoteTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
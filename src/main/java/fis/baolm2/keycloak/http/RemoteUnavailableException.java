@@ -0,0 +1,12 @@
+package fis.baolm2.keycloak.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown without calling the remote server, because its circuit breaker is open or too many calls are already in flight.
+ */
+public class RemoteUnavailableException extends IOException {
+    public RemoteUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,214 @@
+package fis.baolm2.keycloak.metrics;
+
+import fis.baolm2.keycloak.cache.RemoteUserCache;
+import fis.baolm2.keycloak.http.CircuitBreaker;
+import fis.baolm2.keycloak.http.RemoteEndpoint;
+import fis.baolm2.keycloak.service.LoginAttemptLimiter;
+import fis.baolm2.keycloak.service.SingleFlight;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Micrometer meters of one component, registered in Keycloak's meter registry and removed again when the component is closed. <br>
+ * Every meter carries {@code realm} and {@code component} tags with the realm id and component name;
+ * remote call meters also carry the {@code endpoint}.
+ */
+public class RemoteMetrics implements AutoCloseable {
+
+    private static final String PREFIX = "keycloak.remote.user.";
+
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String OUTCOME_CLIENT_ERROR = "client_error";
+    public static final String OUTCOME_SERVER_ERROR = "server_error";
+    public static final String OUTCOME_TIMEOUT = "timeout";
+    public static final String OUTCOME_IO_ERROR = "io_error";
+    public static final String OUTCOME_CANCELLED = "cancelled";
+    public static final String REJECTED_CIRCUIT_OPEN = "circuit_open";
+    public static final String REJECTED_BULKHEAD_FULL = "bulkhead_full";
+
+    private final MeterRegistry registry;
+    private final Tags tags;
+    private final List<Meter> meters = new CopyOnWriteArrayList<>();
+    private final Map<RemoteEndpoint, EndpointMetrics> endpoints = new EnumMap<>(RemoteEndpoint.class);
+
+    public RemoteMetrics(MeterRegistry registry, String realmId, String component) {
+        this.registry = registry;
+        this.tags = Tags.of("realm", realmId, "component", component);
+        for (RemoteEndpoint endpoint : RemoteEndpoint.values()) {
+            endpoints.put(endpoint, new EndpointMetrics(endpoint));
+        }
+    }
+
+    public EndpointMetrics endpoint(RemoteEndpoint endpoint) {
+        return endpoints.get(endpoint);
+    }
+
+    /**
+     * @param path {@code login} or {@code admin}, the endpoints the circuit breaker guards.
+     */
+    public void bindCircuitBreaker(CircuitBreaker circuitBreaker, String path) {
+        add(() -> Gauge.builder(PREFIX + "circuit.state", circuitBreaker, c -> c.getState().ordinal())
+                .tags(tags).tag("path", path)
+                .description("Circuit breaker state: 0 closed, 1 open, 2 half open")
+                .register(registry));
+    }
+
+    public void bindUserCache(RemoteUserCache cache) {
+        add(() -> Gauge.builder(PREFIX + "cache.size", cache, RemoteUserCache::size)
+                .tags(tags).tag("cache", "user")
+                .description("Users in the local user cache")
+                .register(registry));
+        cacheCounter(cache, "hit", RemoteUserCache::getHits);
+        cacheCounter(cache, "negative_hit", RemoteUserCache::getNegativeHits);
+        cacheCounter(cache, "second_level_hit", RemoteUserCache::getSecondLevelHits);
+        cacheCounter(cache, "stale_hit", RemoteUserCache::getStaleHits);
+        cacheCounter(cache, "miss", RemoteUserCache::getMisses);
+        cacheCounter(cache, "revalidated", RemoteUserCache::getRevalidations);
+        add(() -> FunctionCounter.builder(PREFIX + "cache.evictions", cache, RemoteUserCache::getEvictions)
+                .tags(tags).tag("cache", "user")
+                .description("Users evicted from the local user cache before they expired")
+                .register(registry));
+    }
+
+    public void bindSingleFlight(SingleFlight singleFlight) {
+        add(() -> FunctionCounter.builder(PREFIX + "single.flight.calls", singleFlight, SingleFlight::getExecuted)
+                .tags(tags).tag("result", "executed")
+                .description("Remote calls made on behalf of concurrent identical lookups")
+                .register(registry));
+        add(() -> FunctionCounter.builder(PREFIX + "single.flight.calls", singleFlight, SingleFlight::getCoalesced)
+                .tags(tags).tag("result", "coalesced")
+                .description("Lookups that waited for an identical remote call instead of making their own")
+                .register(registry));
+    }
+
+    public void bindLoginLimiter(LoginAttemptLimiter limiter) {
+        loginRejections(limiter, LoginAttemptLimiter.REJECTED_USERNAME, LoginAttemptLimiter::getUsernameRejections);
+        loginRejections(limiter, LoginAttemptLimiter.REJECTED_SOURCE, LoginAttemptLimiter::getSourceRejections);
+        loginRejections(limiter, LoginAttemptLimiter.REJECTED_RECENT_FAILURE, LoginAttemptLimiter::getRecentFailureRejections);
+    }
+
+    private void loginRejections(LoginAttemptLimiter limiter, String reason, ToDoubleFunction<LoginAttemptLimiter> count) {
+        add(() -> FunctionCounter.builder(PREFIX + "login.rejected", limiter, count)
+                .tags(tags).tag("reason", reason)
+                .description("Password attempts rejected locally, without calling the verify endpoint")
+                .register(registry));
+    }
+
+    private void cacheCounter(RemoteUserCache cache, String result, ToDoubleFunction<RemoteUserCache> count) {
+        add(() -> FunctionCounter.builder(PREFIX + "cache.requests", cache, count)
+                .tags(tags).tag("cache", "user").tag("result", result)
+                .description("User cache lookups by result")
+                .register(registry));
+    }
+
+    private <M extends Meter> M add(Supplier<M> meter) {
+        M registered = meter.get();
+        meters.add(registered);
+        return registered;
+    }
+
+    @Override
+    public void close() {
+        meters.forEach(registry::remove);
+        meters.clear();
+    }
+
+    /**
+     * Meters of the calls to one remote endpoint.
+     */
+    public final class EndpointMetrics {
+
+        private final Map<String, Timer> timers = new HashMap<>();
+        private final Map<String, Counter> errors = new HashMap<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final DistributionSummary responseSize;
+        private final Counter hedgesSent;
+        private final Counter hedgesWon;
+
+        private EndpointMetrics(RemoteEndpoint endpoint) {
+            Tags endpointTags = tags.and("endpoint", endpoint.name().toLowerCase(Locale.ROOT));
+            for (String outcome : List.of(OUTCOME_SUCCESS, OUTCOME_CLIENT_ERROR, OUTCOME_SERVER_ERROR, OUTCOME_TIMEOUT, OUTCOME_IO_ERROR, OUTCOME_CANCELLED)) {
+                timers.put(outcome, add(() -> Timer.builder(PREFIX + "requests")
+                        .tags(endpointTags).tag("outcome", outcome)
+                        .description("Remote call latency")
+                        .publishPercentileHistogram()
+                        .register(registry)));
+            }
+            for (String type : List.of(OUTCOME_CLIENT_ERROR, OUTCOME_SERVER_ERROR, OUTCOME_TIMEOUT, OUTCOME_IO_ERROR, REJECTED_CIRCUIT_OPEN, REJECTED_BULKHEAD_FULL)) {
+                errors.put(type, add(() -> Counter.builder(PREFIX + "errors")
+                        .tags(endpointTags).tag("type", type)
+                        .description("Failed or rejected remote calls")
+                        .register(registry)));
+            }
+            add(() -> Gauge.builder(PREFIX + "requests.in.flight", inFlight, AtomicInteger::get)
+                    .tags(endpointTags)
+                    .description("Remote calls currently in flight")
+                    .register(registry));
+            this.responseSize = add(() -> DistributionSummary.builder(PREFIX + "response.size")
+                    .tags(endpointTags)
+                    .baseUnit("bytes")
+                    .description("Size of remote response bodies as transferred, before decompression")
+                    .publishPercentileHistogram()
+                    .register(registry));
+            this.hedgesSent = add(() -> Counter.builder(PREFIX + "hedged.requests")
+                    .tags(endpointTags).tag("result", "sent")
+                    .description("Second calls sent to another instance because the first one was slow")
+                    .register(registry));
+            this.hedgesWon = add(() -> Counter.builder(PREFIX + "hedged.requests")
+                    .tags(endpointTags).tag("result", "won")
+                    .description("Second calls whose answer was used")
+                    .register(registry));
+        }
+
+        public void started() {
+            inFlight.incrementAndGet();
+        }
+
+        /**
+         * Records a call that was made, with one of the {@code OUTCOME_*} values.
+         */
+        public void finished(String outcome, long nanos) {
+            inFlight.decrementAndGet();
+            timers.get(outcome).record(nanos, TimeUnit.NANOSECONDS);
+            if (!OUTCOME_SUCCESS.equals(outcome) && !OUTCOME_CANCELLED.equals(outcome)) {
+                errors.get(outcome).increment();
+            }
+        }
+
+        /**
+         * Records a call that was not made, with one of the {@code REJECTED_*} reasons.
+         */
+        public void rejected(String reason) {
+            errors.get(reason).increment();
+        }
+
+        public void responseSize(long bytes) {
+            responseSize.record(bytes);
+        }
+
+        public void hedged() {
+            hedgesSent.increment();
+        }
+
+        public void hedgeWon() {
+            hedgesWon.increment();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package fis.baolm2.keycloak.provider.federation;
+
+import fis.baolm2.keycloak.cache.RemoteAttributeIndex;
+import fis.baolm2.keycloak.cache.RemoteClusterUserCache;
+import fis.baolm2.keycloak.cache.RemoteCountCache;
+import fis.baolm2.keycloak.cache.RemoteSearchCache;
+import fis.baolm2.keycloak.cache.RemoteGroupMemberIndex;
+import fis.baolm2.keycloak.cache.RemoteUserCache;
+import fis.baolm2.keycloak.cache.RemoteUserSnapshot;
+import fis.baolm2.keycloak.http.RemoteEndpoint;
+import fis.baolm2.keycloak.http.RemoteHttpClient;
+import fis.baolm2.keycloak.metrics.RemoteMetrics;
+import fis.baolm2.keycloak.service.LoginAttemptLimiter;
+import fis.baolm2.keycloak.service.SingleFlight;
+import fis.baolm2.keycloak.service.UserService;
+import org.jboss.logging.Logger;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.infinispan.Cache;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.truststore.HostnameVerificationPolicy;
+import org.keycloak.truststore.TruststoreProvider;
+
+import javax.net.ssl.HostnameVerifier;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static fis.baolm2.keycloak.constant.RemoteUserStorageProviderConstants.*;
+
+/**
+ * Long-lived state of one configured remote user provider (one {@link ComponentModel}). <br>
+ * It is created and owned by {@link RemoteUserProviderFactory} and shared by all sessions using the component,
+ * in contrast to {@link RemoteUserProvider} which lives only as long as its {@code KeycloakSession}.
+ */
+public class RemoteComponentContext implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(RemoteComponentContext.class);
+
+    private final String name;
+    private final MultivaluedHashMap<String, String> config;
+    private final boolean debugEnabled;
+    private final boolean addRolesToToken;
+    private final RemoteMetrics metrics;
+    private final RemoteUserCache userCache;
+    private final SingleFlight singleFlight = new SingleFlight();
+    private final RemoteHttpClient httpClient;
+    private final ExecutorService backgroundExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+            .name("remote-user-federation-scheduler").daemon().factory());
+    private final UserService userService;
+    private final RemoteCountCache countCache;
+    private final RemoteSearchCache searchCache;
+    private final RemoteGroupMemberIndex groupMembers;
+    private final RemoteRoleProvisioner roleProvisioner;
+    private final RemoteUserSnapshot snapshot;
+    private final RemoteClusterUserCache clusterCache;
+    private final LoginAttemptLimiter loginLimiter;
+
+    public RemoteComponentContext(ComponentModel model, KeycloakSessionFactory sessionFactory) {
+        this.name = model.getName();
+        this.config = new MultivaluedHashMap<>();
+        if (model.getConfig() != null) {
+            model.getConfig().forEach((key, values) -> config.put(key, List.copyOf(values)));
+        }
+        this.userCache = new RemoteUserCache(
+                TimeUnit.SECONDS.toMillis(model.get(USER_CACHE_TTL, DEFAULT_USER_CACHE_TTL)),
+                TimeUnit.SECONDS.toMillis(model.get(USER_CACHE_NEGATIVE_TTL, DEFAULT_USER_CACHE_NEGATIVE_TTL)),
+                model.get(USER_CACHE_MAX_SIZE, DEFAULT_USER_CACHE_MAX_SIZE),
+                RemoteAttributeIndex.of(model.get(INDEXED_ATTRIBUTES)));
+        this.debugEnabled = Boolean.parseBoolean(model.get(DEBUG_ENABLED));
+        this.addRolesToToken = Boolean.parseBoolean(model.get(ADD_ROLES_TO_TOKEN));
+        this.metrics = new RemoteMetrics(Metrics.globalRegistry, model.getParentId(), model.getName());
+        metrics.bindUserCache(userCache);
+        metrics.bindSingleFlight(singleFlight);
+        this.httpClient = new RemoteHttpClient(model, createTlsSocketFactory(sessionFactory), scheduler, metrics);
+        this.userService = new UserService(model, httpClient, singleFlight, backgroundExecutor, scheduler);
+        this.countCache = new RemoteCountCache(TimeUnit.SECONDS.toMillis(model.get(COUNT_CACHE_TTL, DEFAULT_COUNT_CACHE_TTL)), backgroundExecutor);
+        this.searchCache = new RemoteSearchCache(TimeUnit.SECONDS.toMillis(model.get(SEARCH_CACHE_TTL, DEFAULT_SEARCH_CACHE_TTL)),
+                model.get(SEARCH_CACHE_MAX_SIZE, DEFAULT_SEARCH_CACHE_MAX_SIZE));
+        this.groupMembers = httpClient.isConfigured(RemoteEndpoint.GROUP_MEMBERS)
+                ? new RemoteGroupMemberIndex(TimeUnit.SECONDS.toMillis(model.get(GROUP_MEMBERS_CACHE_TTL, DEFAULT_GROUP_MEMBERS_CACHE_TTL)),
+                userService::getGroupMemberIds, backgroundExecutor)
+                : null;
+        this.roleProvisioner = new RemoteRoleProvisioner(model.get(ROLE_PROVISIONING_POLICY), sessionFactory, scheduler);
+        this.snapshot = createSnapshot(model);
+        this.clusterCache = createClusterCache(model, sessionFactory);
+        this.loginLimiter = new LoginAttemptLimiter(
+                model.get(LOGIN_LIMIT_PER_USERNAME, DEFAULT_LOGIN_LIMIT_PER_USERNAME),
+                model.get(LOGIN_LIMIT_PER_SOURCE, DEFAULT_LOGIN_LIMIT_PER_SOURCE),
+                TimeUnit.SECONDS.toMillis(model.get(LOGIN_FAILURE_MEMORY, DEFAULT_LOGIN_FAILURE_MEMORY)));
+        metrics.bindLoginLimiter(loginLimiter);
+    }
+
+    /**
+     * Builds the HTTPS socket factory from Keycloak's truststore and hostname verification policy, as Keycloak's own
+     * outgoing HTTP client does, so the remote server is trusted under the same rules.
+     *
+     * @return the socket factory, or {@code null} to use the JVM defaults when no truststore is configured.
+     */
+    private static SSLConnectionSocketFactory createTlsSocketFactory(KeycloakSessionFactory sessionFactory) {
+        if (sessionFactory == null) {
+            return null;
+        }
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            TruststoreProvider truststore = session.getProvider(TruststoreProvider.class);
+            if (truststore == null || truststore.getSSLSocketFactory() == null) {
+                return null;
+            }
+            HostnameVerifier verifier = truststore.getPolicy() == HostnameVerificationPolicy.ANY
+                    ? NoopHostnameVerifier.INSTANCE
+                    : new DefaultHostnameVerifier();
+            return new SSLConnectionSocketFactory(truststore.getSSLSocketFactory(), verifier);
+        });
+    }
+
+    private RemoteUserSnapshot createSnapshot(ComponentModel model) {
+        String directory = model.get(SNAPSHOT_DIRECTORY);
+        if (directory == null || directory.isBlank() || !userCache.isEnabled()) {
+            return null;
+        }
+        RemoteUserSnapshot userSnapshot = new RemoteUserSnapshot(Path.of(directory.trim()), model.getId(), userCache,
+                TimeUnit.SECONDS.toMillis(model.get(SNAPSHOT_COMPACTION_INTERVAL, DEFAULT_SNAPSHOT_COMPACTION_INTERVAL)), scheduler, backgroundExecutor);
+        userSnapshot.loadAsync(backgroundExecutor);
+        return userSnapshot;
+    }
+
+    private RemoteClusterUserCache createClusterCache(ComponentModel model, KeycloakSessionFactory sessionFactory) {
+        if (!RemoteClusterUserCache.MODE_CLUSTER.equals(model.get(CACHE_MODE)) || !userCache.isEnabled()) {
+            return null;
+        }
+        String cacheName = model.get(CLUSTER_CACHE_NAME);
+        String name = cacheName == null || cacheName.isBlank() ? InfinispanConnectionProvider.WORK_CACHE_NAME : cacheName.trim();
+        Cache<String, String> cache = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+            return infinispan == null ? null : infinispan.getCache(name);
+        });
+        if (cache == null) {
+            logger.warnf("Infinispan cache %s is not available, user cache of %s stays local to this node", name, model.getName());
+            return null;
+        }
+        RemoteClusterUserCache shared = new RemoteClusterUserCache(cache, model.getId(), userCache);
+        userCache.addListener(shared);
+        userCache.setSecondLevel(shared);
+        return shared;
+    }
+
+    /**
+     * @return {@code true} if the context was created from the current configuration of the component.
+     * Other cluster nodes do not get {@code onUpdate} calls, so a changed configuration is detected this way.
+     */
+    public boolean isConfiguredBy(ComponentModel model) {
+        return Objects.equals(name, model.getName()) && Objects.equals(config, model.getConfig() == null ? new MultivaluedHashMap<>() : model.getConfig());
+    }
+
+    public boolean isDebugEnabled() {
+        return debugEnabled;
+    }
+
+    public boolean isAddRolesToToken() {
+        return addRolesToToken;
+    }
+
+    public RemoteUserCache getUserCache() {
+        return userCache;
+    }
+
+    public SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    public UserService getUserService() {
+        return userService;
+    }
+
+    public ExecutorService getBackgroundExecutor() {
+        return backgroundExecutor;
+    }
+
+    public RemoteHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public RemoteCountCache getCountCache() {
+        return countCache;
+    }
+
+    public RemoteSearchCache getSearchCache() {
+        return searchCache;
+    }
+
+    /**
+     * @return the group members cache, or {@code null} if no group members endpoint is configured.
+     */
+    public RemoteGroupMemberIndex getGroupMembers() {
+        return groupMembers;
+    }
+
+    public RemoteRoleProvisioner getRoleProvisioner() {
+        return roleProvisioner;
+    }
+
+    public LoginAttemptLimiter getLoginLimiter() {
+        return loginLimiter;
+    }
+
+    @Override
+    public void close() {
+        if (clusterCache != null) {
+            userCache.setSecondLevel(null);
+            userCache.removeListener(clusterCache);
+            clusterCache.close();
+        }
+        if (snapshot != null) {
+            snapshot.close();
+        }
+        metrics.close();
+        userCache.clear();
+        countCache.clear();
+        searchCache.clear();
+        if (groupMembers != null) {
+            groupMembers.clear();
+        }
+        userService.close();
+        backgroundExecutor.shutdownNow();
+        scheduler.shutdownNow();
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to close remote http client");
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package fis.baolm2.keycloak.provider.federation;
+
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Session scoped cache from role name to {@link RoleModel}, per realm. <br>
+ * Role models belong to the session that loaded them, so unlike the role names this cache cannot be shared across sessions.
+ * It makes resolving the roles of several users, or of the same user several times, cost one lookup per distinct role.
+ */
+public class RemoteRoleMapper {
+
+    private final RemoteRoleProvisioner provisioner;
+    private final Map<String, Map<String, RoleModel>> realmRoles = new HashMap<>();
+
+    public RemoteRoleMapper(RemoteRoleProvisioner provisioner) {
+        this.provisioner = provisioner;
+    }
+
+    public Stream<RoleModel> getRoles(RealmModel realm, RemoteUserEntity user) {
+        Set<String> names = provisioner.getRoleNames(user);
+        if (names.isEmpty()) {
+            return Stream.empty();
+        }
+        Map<String, RoleModel> roles = realmRoles.computeIfAbsent(realm.getId(), id -> new HashMap<>());
+        List<RoleModel> result = new ArrayList<>(names.size());
+        for (String name : names) {
+            RoleModel role = roles.get(name);
+            if (role == null && !roles.containsKey(name)) {
+                // A missing role is remembered as null for the rest of the session
+                role = provisioner.resolve(realm, name);
+                roles.put(name, role);
+            }
+            if (role != null) {
+                result.add(role);
+            }
+        }
+        return result.stream();
+    }
+
+    public void clear() {
+        realmRoles.clear();
+    }
+}
@@ -0,0 +1,157 @@
+package fis.baolm2.keycloak.provider.federation;
+
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static fis.baolm2.keycloak.constant.RemoteUserStorageProviderConstants.*;
+
+/**
+ * Turns the remote {@code roles} of users into realm roles, shared by all sessions of a component. <br>
+ * Role names are parsed once per entity and deduplicated across users. Depending on the provisioning policy a missing realm role is
+ * created inline, created later in a batched background transaction ({@link #POLICY_ASYNC}), or ignored.
+ */
+public class RemoteRoleProvisioner {
+
+    private static final Logger logger = Logger.getLogger(RemoteRoleProvisioner.class);
+
+    public static final String POLICY_ASYNC = "async";
+    public static final String POLICY_INLINE = "inline";
+    public static final String POLICY_DISABLED = "disabled";
+
+    private static final long BATCH_DELAY_MILLIS = 500;
+    private static final int MAX_CANONICAL_NAMES = 10000;
+
+    private final String policy;
+    private final KeycloakSessionFactory sessionFactory;
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<String, String> canonicalNames = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> pendingRoles = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    public RemoteRoleProvisioner(String policy, KeycloakSessionFactory sessionFactory, ScheduledExecutorService scheduler) {
+        this.policy = policy == null || policy.isBlank() ? POLICY_ASYNC : policy;
+        this.sessionFactory = sessionFactory;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return the distinct role names of the user, parsed from the comma separated {@code roles} on first use.
+     */
+    public Set<String> getRoleNames(RemoteUserEntity user) {
+        Set<String> roleNames = user.getRoleNames();
+        if (roleNames == null) {
+            roleNames = parse(user.getRoles());
+            user.setRoleNames(roleNames);
+        }
+        return roleNames;
+    }
+
+    /**
+     * Resolves a realm role by name, applying the provisioning policy if it does not exist yet.
+     *
+     * @return the role, or {@code null} if it does not exist (yet).
+     */
+    public RoleModel resolve(RealmModel realm, String name) {
+        RoleModel role = realm.getRole(name);
+        if (role != null) {
+            return role;
+        }
+        switch (policy) {
+            case POLICY_INLINE:
+                logger.infof("Adding role %s", name);
+                return realm.addRole(name);
+            case POLICY_ASYNC:
+                enqueue(realm.getId(), name);
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private void enqueue(String realmId, String name) {
+        boolean added = pendingRoles.computeIfAbsent(realmId, id -> ConcurrentHashMap.newKeySet()).add(name);
+        if (added && flushScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.schedule(this::flush, BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        for (String realmId : pendingRoles.keySet()) {
+            Set<String> names = pendingRoles.remove(realmId);
+            if (names == null || names.isEmpty()) {
+                continue;
+            }
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> addMissingRoles(session.realms().getRealm(realmId), names));
+            } catch (RuntimeException e) {
+                // Most likely another node created one of the roles concurrently, retry them one by one
+                logger.debugf("Batch role provisioning failed for realm %s, retrying individually: %s", realmId, e.getMessage());
+                for (String name : names) {
+                    try {
+                        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> addMissingRoles(session.realms().getRealm(realmId), Set.of(name)));
+                    } catch (RuntimeException roleException) {
+                        logger.warnf("Unable to add role %s to realm %s: %s", name, realmId, roleException.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addMissingRoles(RealmModel realm, Set<String> names) {
+        if (realm == null) {
+            return;
+        }
+        for (String name : names) {
+            if (realm.getRole(name) == null) {
+                realm.addRole(name);
+                logger.infof("Adding role %s", name);
+            }
+        }
+    }
+
+    private Set<String> parse(String roles) {
+        if (roles == null || roles.isBlank()) {
+            return Set.of();
+        }
+        Set<String> names = new LinkedHashSet<>();
+        for (String role : roles.split(",")) {
+            String name = role.trim();
+            if (!name.isEmpty()) {
+                names.add(canonical(name));
+            }
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    private String canonical(String name) {
+        String existing = canonicalNames.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        if (canonicalNames.size() >= MAX_CANONICAL_NAMES) {
+            return name;
+        }
+        existing = canonicalNames.putIfAbsent(name, name);
+        return existing == null ? name : existing;
+    }
+}
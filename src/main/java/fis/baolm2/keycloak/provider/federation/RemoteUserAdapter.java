@@ -2,37 +2,44 @@ package fis.baolm2.keycloak.provider.federation;
 
 import fis.baolm2.keycloak.dto.RemoteUserEntity;
 import org.jboss.logging.Logger;
-import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.UserCredentialManager;
 import org.keycloak.models.*;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
 
-import static fis.baolm2.keycloak.constant.RemoteUserStorageProviderConstants.ADD_ROLES_TO_TOKEN;
-import static fis.baolm2.keycloak.constant.RemoteUserStorageProviderConstants.DEBUG_ENABLED;
-
 public class RemoteUserAdapter extends AbstractUserAdapterFederatedStorage {
 
     private static final Logger logger = Logger.getLogger(RemoteUserAdapter.class);
 
-    // This model contains the configuration of the storage provider
-    private final ComponentModel model;
-
+    // Shared with other sessions through the user cache, must not be modified
     private final RemoteUserEntity user;
+    private final RemoteRoleMapper roleMapper;
     private final String keycloakId;
-    private final String username;
+    // Parsed once per component, see RemoteComponentContext
+    private final boolean debugEnabled;
+    private final boolean addRolesToToken;
+    private String username;
+
+    // Immutable view of the remote attributes, built on first use and dropped whenever the entity is changed
+    private Map<String, List<String>> attributes;
 
-    public RemoteUserAdapter(ComponentModel model, KeycloakSession session, RealmModel realm, ComponentModel storageProviderModel, RemoteUserEntity user) {
+    public RemoteUserAdapter(ComponentModel model, KeycloakSession session, RealmModel realm, ComponentModel storageProviderModel, RemoteUserEntity user, RemoteRoleMapper roleMapper,
+                             boolean debugEnabled, boolean addRolesToToken) {
         super(session, realm, storageProviderModel);
         this.user = user;
+        this.roleMapper = roleMapper;
         this.keycloakId = StorageId.keycloakId(model, user.getId());
         this.username = user.getUserName();
-        this.model = model;
+        this.debugEnabled = debugEnabled;
+        this.addRolesToToken = addRolesToToken;
     }
 
     @Override
@@ -51,9 +58,14 @@ public class RemoteUserAdapter extends AbstractUserAdapterFederatedStorage {
         return username;
     }
 
+    /**
+     * Changes the username of this adapter only. The entity is shared through the user cache with every session,
+     * so it is never modified; the remote user itself is read-only.
+     */
     @Override
     public void setUsername(String s) {
-        this.user.setUserName(s);
+        this.username = s;
+        this.attributes = null;
     }
 
     @Override
@@ -78,53 +90,63 @@ public class RemoteUserAdapter extends AbstractUserAdapterFederatedStorage {
 
     @Override
     public Map<String, List<String>> getAttributes() {
-        MultivaluedHashMap<String, String> attributes = new MultivaluedHashMap<>();
-        attributes.add(UserModel.USERNAME, getUsername());
-        attributes.add(UserModel.EMAIL, getEmail());
-        attributes.add(UserModel.FIRST_NAME, getFirstName());
-        attributes.add(UserModel.LAST_NAME, getLastName());
-        for (Map.Entry<String, String> param : user.getAttributes().entrySet()) {
-            attributes.add(param.getKey(), param.getValue());
+        Map<String, List<String>> view = attributes;
+        if (view == null) {
+            view = buildAttributes();
+            attributes = view;
         }
-        return attributes;
+        return view;
     }
 
     @Override
     public Stream<String> getAttributeStream(String name) {
-        Map<String, List<String>> attributes = getAttributes();
-        return (attributes.containsKey(name)) ? attributes.get(name).stream() : Stream.empty();
+        List<String> values = getAttributes().get(name);
+        return values == null ? Stream.empty() : values.stream();
     }
 
     @Override
     public String getFirstAttribute(String name) {
-        List<String> list = getAttributes().getOrDefault(name, List.of());
-        return list.isEmpty() ? null : list.getFirst();
+        List<String> values = getAttributes().get(name);
+        return values == null || values.isEmpty() ? null : values.getFirst();
+    }
+
+    private Map<String, List<String>> buildAttributes() {
+        Map<String, String> remoteAttributes = user.getAttributes() == null ? Map.of() : user.getAttributes();
+        Map<String, List<String>> values = new HashMap<>(remoteAttributes.size() + 8);
+        addAttribute(values, UserModel.USERNAME, getUsername());
+        addAttribute(values, UserModel.EMAIL, getEmail());
+        addAttribute(values, UserModel.FIRST_NAME, getFirstName());
+        addAttribute(values, UserModel.LAST_NAME, getLastName());
+        for (Map.Entry<String, String> param : remoteAttributes.entrySet()) {
+            addAttribute(values, param.getKey(), param.getValue());
+        }
+        values.replaceAll((name, list) -> list instanceof ArrayList ? Collections.unmodifiableList(list) : list);
+        return Collections.unmodifiableMap(values);
+    }
+
+    private static void addAttribute(Map<String, List<String>> values, String name, String value) {
+        List<String> existing = values.get(name);
+        if (existing == null) {
+            // Most attributes hold a single value, which a singleton list stores without a backing array
+            values.put(name, Collections.singletonList(value));
+        } else {
+            List<String> merged = new ArrayList<>(existing);
+            merged.add(value);
+            values.put(name, merged);
+        }
     }
 
     @Override
     public Stream<RoleModel> getRoleMappingsStream() {
         Stream<RoleModel> roleMappings = super.getRoleMappingsStream();
-        boolean addFederationRoles = Boolean.parseBoolean(model.get(ADD_ROLES_TO_TOKEN));
-        if (!addFederationRoles) {
+        if (!addRolesToToken) {
             return roleMappings;
         }
-
-        String[] roleArr = user.getRoles().split(",");
-        for (String role : roleArr) {
-            RoleModel roleModel = realm.getRole(role);
-            if (roleModel == null) {
-                roleModel = realm.addRole(role);
-                log("Adding role %s", role);
-            }
-//            log("Granting role %s to user %s during user import from Remote", role, username);
-//            this.grantRole(roleModel);
-            roleMappings = Stream.concat(roleMappings, Stream.of(roleModel));
-        }
-        return roleMappings;
+        return Stream.concat(roleMappings, roleMapper.getRoles(realm, user));
     }
 
     private void log(String message, Object... params) {
-        if (Boolean.parseBoolean(model.get(DEBUG_ENABLED))) {
+        if (debugEnabled) {
             logger.infof(message, params);
         }
     }
@@ -0,0 +1,71 @@
+package fis.baolm2.keycloak.provider.federation;
+
+import fis.baolm2.keycloak.cache.RemoteUserCache;
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Session scoped identity map from user id, username and email to the {@link UserModel} of a remote user, per realm. <br>
+ * A user resolved once in a session is returned as the same adapter for the rest of it, whichever key it is looked up by,
+ * so one login or token request fetches and maps each user at most once, with or without the cross-session user cache.
+ * Users the remote server does not know are remembered per key for the session as well.
+ */
+public class RemoteUserIdentityMap {
+
+    private final Map<String, Map<String, UserModel>> realmUsers = new HashMap<>();
+
+    /**
+     * @return {@code true} if the key was resolved before in this session, to a user or to "not found".
+     */
+    public boolean contains(RealmModel realm, String type, String key) {
+        Map<String, UserModel> users = realmUsers.get(realm.getId());
+        return users != null && users.containsKey(key(type, key));
+    }
+
+    /**
+     * @return the user resolved before for the key, {@code null} if it was not found or not resolved yet.
+     */
+    public UserModel get(RealmModel realm, String type, String key) {
+        Map<String, UserModel> users = realmUsers.get(realm.getId());
+        return users == null ? null : users.get(key(type, key));
+    }
+
+    /**
+     * Returns the adapter already mapped for the user in this session, or maps it and registers it under all its keys.
+     */
+    public UserModel map(RealmModel realm, RemoteUserEntity entity, Function<RemoteUserEntity, UserModel> mapper) {
+        Map<String, UserModel> users = realmUsers.computeIfAbsent(realm.getId(), id -> new HashMap<>());
+        String idKey = key(RemoteUserCache.TYPE_ID, entity.getId());
+        UserModel user = users.get(idKey);
+        if (user != null) {
+            return user;
+        }
+        user = mapper.apply(entity);
+        users.put(idKey, user);
+        if (entity.getUserName() != null) {
+            users.put(key(RemoteUserCache.TYPE_USERNAME, entity.getUserName()), user);
+        }
+        if (entity.getEmail() != null) {
+            users.put(key(RemoteUserCache.TYPE_EMAIL, entity.getEmail()), user);
+        }
+        return user;
+    }
+
+    public void putMissing(RealmModel realm, String type, String key) {
+        realmUsers.computeIfAbsent(realm.getId(), id -> new HashMap<>()).put(key(type, key), null);
+    }
+
+    public void clear() {
+        realmUsers.clear();
+    }
+
+    private static String key(String type, String key) {
+        return type + ":" + (RemoteUserCache.TYPE_ID.equals(type) || key == null ? key : key.toLowerCase(Locale.ROOT));
+    }
+}
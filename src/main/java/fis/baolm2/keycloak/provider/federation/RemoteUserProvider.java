@@ -1,12 +1,21 @@
 package fis.baolm2.keycloak.provider.federation;
 
+import fis.baolm2.keycloak.cache.RemoteCountCache;
+import fis.baolm2.keycloak.cache.RemoteGroupMemberIndex;
+import fis.baolm2.keycloak.cache.RemoteSearchCache;
+import fis.baolm2.keycloak.cache.RemoteUserCache;
+import fis.baolm2.keycloak.dto.RemoteAuthenticateResponse;
+import fis.baolm2.keycloak.dto.RemoteCountResponse;
 import fis.baolm2.keycloak.dto.RemoteUserEntity;
 import fis.baolm2.keycloak.dto.RemoteVerifyPasswordResponse;
+import fis.baolm2.keycloak.service.LoginAttemptLimiter;
 import fis.baolm2.keycloak.service.UserService;
 import org.jboss.logging.Logger;
+import org.keycloak.common.ClientConnection;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.credential.CredentialInputValidator;
+import org.keycloak.http.HttpRequest;
 import org.keycloak.models.*;
 import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.storage.StorageId;
@@ -16,13 +25,22 @@ import org.keycloak.storage.user.UserQueryProvider;
 import org.keycloak.storage.user.UserRegistrationProvider;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
-import static fis.baolm2.keycloak.constant.RemoteUserStorageProviderConstants.DEBUG_ENABLED;
+import static fis.baolm2.keycloak.constant.RemoteUserStorageProviderConstants.*;
 
 /**
  * The RemoteUserProvider class is responsible for providing user storage, user lookup, user query, and credential input validation services. <br>
@@ -40,15 +58,41 @@ public class RemoteUserProvider implements UserStorageProvider,
 
     private static final Logger logger = Logger.getLogger(RemoteUserProvider.class);
 
+    private static final String GROUPS_PARAM = "groups";
+    private static final String FORM_USERNAME = "username";
+    private static final String FORM_PASSWORD = "password";
+
     private final KeycloakSession session;
     private final ComponentModel model;
 
     private final UserService userService;
-
-    public RemoteUserProvider(KeycloakSession session, ComponentModel model, UserService userService) {
+    private final RemoteUserCache userCache;
+    private final RemoteCountCache countCache;
+    private final RemoteSearchCache searchCache;
+    private final RemoteGroupMemberIndex groupMembers;
+    private final RemoteRoleMapper roleMapper;
+    private final RemoteUserIdentityMap identities = new RemoteUserIdentityMap();
+    private final LoginAttemptLimiter loginLimiter;
+    private PendingVerification pendingVerification;
+    private final boolean attributeSearchRemote;
+    private final int pageSize;
+    private final boolean debugEnabled;
+    private final boolean addRolesToToken;
+
+    public RemoteUserProvider(KeycloakSession session, ComponentModel model, UserService userService, RemoteComponentContext context) {
         this.session = session;
         this.model = model;
         this.userService = userService;
+        this.userCache = context.getUserCache();
+        this.countCache = context.getCountCache();
+        this.searchCache = context.getSearchCache();
+        this.groupMembers = context.getGroupMembers();
+        this.roleMapper = new RemoteRoleMapper(context.getRoleProvisioner());
+        this.loginLimiter = context.getLoginLimiter();
+        this.attributeSearchRemote = model.get(ATTRIBUTE_SEARCH_REMOTE, false);
+        this.pageSize = Math.max(1, model.get(SEARCH_PAGE_SIZE, DEFAULT_SEARCH_PAGE_SIZE));
+        this.debugEnabled = context.isDebugEnabled();
+        this.addRolesToToken = context.isAddRolesToToken();
     }
 
     @Override
@@ -58,13 +102,15 @@ public class RemoteUserProvider implements UserStorageProvider,
 
     @Override
     public boolean isConfiguredFor(RealmModel realm, UserModel user, String credentialType) {
-        log("isConfiguredFor(realm=" + realm.getName() + ", user=" + user.getUsername() + ", credentialType=" + credentialType + ")");
+        log("isConfiguredFor(realm=%s, user=%s, credentialType=%s)", realm.getName(), user.getUsername(), credentialType);
         return true;
     }
 
     /**
      * Performs a remote password verification operation. <br>
-     * This method sends a request to the remote server to verify the user's password.
+     * This method sends a request to the remote server to verify the user's password,
+     * unless the {@link LoginAttemptLimiter} rejects the attempt locally first,
+     * or the password was already verified when the user was looked up through the authenticate endpoint.
      *
      * @param realm           The realm in which to which the credential belongs to
      * @param user            The user for which to test the credential
@@ -75,51 +121,158 @@ public class RemoteUserProvider implements UserStorageProvider,
     public boolean isValid(RealmModel realm, UserModel user, CredentialInput credentialInput) {
         log("isValid(realm=%s,user=%s,credentialInput.type=%s)",
                 realm.getName(), user.getUsername(), credentialInput.getType());
+        String password = credentialInput.getChallengeResponse();
+        PendingVerification pending = pendingVerification;
+        if (pending != null && pending.matches(user, password)) {
+            pendingVerification = null;
+            log("Verify user [%s] result %s, verified on lookup", user.getUsername(), pending.valid());
+            return pending.valid();
+        }
+        if (loginLimiter.isEnabled()) {
+            String rejected = loginLimiter.check(user.getUsername(), password, sourceAddress());
+            if (rejected != null) {
+                log("Verify user [%s] rejected locally: %s", user.getUsername(), rejected);
+                return false;
+            }
+        }
         try {
-            RemoteVerifyPasswordResponse response = userService.verifyPassword(user.getUsername(), credentialInput.getChallengeResponse());
+            RemoteVerifyPasswordResponse response = userService.verifyPassword(user.getUsername(), password);
             if (response == null) {
                 log("Remote verify service response empty");
                 return false;
             }
             log("Verify user [%s] result %s", user.getUsername(), response.isValid());
-            return response.isValid();
+            // Only an explicit rejection is remembered, not an answer without a result
+            if (Boolean.FALSE.equals(response.isValid())) {
+                loginLimiter.recordFailure(user.getUsername(), password);
+            }
+            return Boolean.TRUE.equals(response.isValid());
         } catch (Exception e) {
             throw new RuntimeException("Remote server error:" + e.getMessage(), e);
         }
     }
 
+    private String sourceAddress() {
+        KeycloakContext context = session.getContext();
+        ClientConnection connection = context == null ? null : context.getConnection();
+        return connection == null ? null : connection.getRemoteAddr();
+    }
+
+    /**
+     * @return the password posted with the current request if it is a login form or direct grant for the given username
+     * or email, {@code null} otherwise.
+     */
+    private String postedPassword(String search) {
+        KeycloakContext context = session.getContext();
+        HttpRequest request = context == null ? null : context.getHttpRequest();
+        if (request == null || !"POST".equals(request.getHttpMethod())) {
+            return null;
+        }
+        try {
+            var form = request.getDecodedFormParameters();
+            String password = form == null ? null : form.getFirst(FORM_PASSWORD);
+            String username = form == null ? null : form.getFirst(FORM_USERNAME);
+            if (password == null || password.isEmpty() || username == null || !username.trim().equalsIgnoreCase(search)) {
+                return null;
+            }
+            return password;
+        } catch (RuntimeException e) {
+            // Not a form request
+            return null;
+        }
+    }
+
     @Override
     public int getUsersCount(RealmModel realm) {
         log("Get users count");
-        return userService.getUserCount(null).total();
+        return countUsers(realm, null, null);
     }
 
     @Override
     public int getUsersCount(RealmModel realm, Set<String> groupIds) {
         log("Get users count by group %s", groupIds);
-        return userService.getUserCount(null).total();
+        return countUsers(realm, null, groupIds);
     }
 
     @Override
     public int getUsersCount(RealmModel realm, Map<String, String> params) {
         log("Get users count by params %s", params);
-        return userService.getUserCount(params).total();
+        return countUsers(realm, params, null);
     }
 
     @Override
     public int getUsersCount(RealmModel realm, Map<String, String> params, Set<String> groupIds) {
         log("Get users count by params and group %s, %s", params, groupIds);
-        return userService.getUserCount(params).total();
+        return countUsers(realm, params, groupIds);
     }
 
     @Override
     public int getUsersCount(RealmModel realm, boolean includeServiceAccount) {
         log("Get users count by includeServiceAccount");
-        return userService.getUserCount(null).total();
+        return countUsers(realm, Map.of(UserModel.INCLUDE_SERVICE_ACCOUNT, String.valueOf(includeServiceAccount)), null);
+    }
+
+    private int countUsers(RealmModel realm, Map<String, String> params, Set<String> groupIds) {
+        if (groupIds != null) {
+            return countGroupMembers(realm, params, groupIds);
+        }
+        return count(RemoteCountCache.key(params, groupIds), () -> total(userService.getUserCount(params)));
+    }
+
+    /**
+     * A remote server answering without a total has no users to count for the query.
+     */
+    private static int total(RemoteCountResponse count) {
+        return count == null ? 0 : count.total();
+    }
+
+    /**
+     * Like a failed search, a failed count is not answered with 0, the console would show a wrong total.
+     */
+    private int count(RemoteCountCache.Key key, RemoteCountCache.CountLoader loader) {
+        try {
+            return countCache.get(key, loader);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Remote user count " + key + " failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Counts the remote users that are members of any of the groups, from the cached group members. <br>
+     * With search parameters, the count endpoint is asked with the group names added as {@code groups};
+     * that count is cached like other counts.
+     */
+    private int countGroupMembers(RealmModel realm, Map<String, String> params, Set<String> groupIds) {
+        if (groupMembers == null || groupIds.isEmpty()) {
+            return 0;
+        }
+        List<String> groupNames = new ArrayList<>(groupIds.size());
+        for (String groupId : groupIds) {
+            GroupModel group = realm.getGroupById(groupId);
+            if (group != null) {
+                groupNames.add(group.getName());
+            }
+        }
+        if (groupNames.isEmpty()) {
+            return 0;
+        }
+        if (params == null || params.keySet().stream().allMatch(UserModel.INCLUDE_SERVICE_ACCOUNT::equals)) {
+            Set<String> members = new HashSet<>();
+            for (String groupName : groupNames) {
+                Collections.addAll(members, groupMembers.getMembers(groupName));
+            }
+            return members.size();
+        }
+        Map<String, String> query = new HashMap<>(params);
+        query.put(GROUPS_PARAM, String.join(",", new TreeSet<>(groupNames)));
+        return count(RemoteCountCache.key(params, groupIds), () -> total(userService.getUserCount(query)));
     }
 
     @Override
     public void close() {
+        identities.clear();
+        pendingVerification = null;
+        roleMapper.clear();
     }
 
     @Override
@@ -132,61 +285,192 @@ public class RemoteUserProvider implements UserStorageProvider,
     @Override
     public UserModel getUserByUsername(RealmModel realm, String username) {
         log("Get user by username %s", username);
-        return getUser(realm, "username", username);
+        return getUserForLogin(realm, "username", username);
     }
 
     @Override
     public UserModel getUserByEmail(RealmModel realm, String email) {
         log("Get user by email %s", email);
-        return getUser(realm, "email", email);
+        return getUserForLogin(realm, "email", email);
     }
 
-    private UserModel getUser(RealmModel realm, String type, String search) {
-        try {
-            RemoteUserEntity userEntity = null;
-            switch (type) {
-                case "id": {
-                    userEntity = userService.getUserById(search);
-                    break;
-                }
-                case "username": {
-                    userEntity = userService.getUserByUsername(search);
-                    break;
-                }
-                case "email": {
-                    userEntity = userService.getUserByEmail(search);
-                    break;
+    /**
+     * Looks a user up by username or email. When the current request is a password login for that user and the
+     * authenticate endpoint is configured, the user is fetched and its password verified in one remote call,
+     * and the result is kept for the {@link #isValid} call of the same flow.
+     */
+    private UserModel getUserForLogin(RealmModel realm, String type, String search) {
+        if (pendingVerification != null || !userService.isAuthenticateEnabled() || identities.contains(realm, type, search)) {
+            return getUser(realm, type, search);
+        }
+        String password = postedPassword(search);
+        if (password == null) {
+            return getUser(realm, type, search);
+        }
+        if (loginLimiter.isEnabled()) {
+            String rejected = loginLimiter.check(search, password, sourceAddress());
+            if (rejected != null) {
+                log("Authenticate user [%s] rejected locally: %s", search, rejected);
+                UserModel user = getUser(realm, type, search);
+                if (user != null) {
+                    pendingVerification = new PendingVerification(user.getId(), password, false);
                 }
+                return user;
             }
-            if (userEntity == null) {
-                log("Remote user not found");
+        }
+        RemoteAuthenticateResponse response;
+        try {
+            response = userService.authenticate(search, password);
+        } catch (Exception e) {
+            logger.warnf("Remote authenticate failed, falling back to separate lookup and verification of %s: %s", search, e.getMessage());
+            return getUser(realm, type, search);
+        }
+        if (response == null) {
+            log("Remote user not found");
+            userCache.putMissing(type, search);
+            identities.putMissing(realm, type, search);
+            return null;
+        }
+        boolean valid = Boolean.TRUE.equals(response.isValid());
+        log("Authenticate user [%s] result %s", search, valid);
+        if (Boolean.FALSE.equals(response.isValid())) {
+            loginLimiter.recordFailure(search, password);
+        }
+        userCache.put(response.user());
+        UserModel user = mapUser(realm, response.user());
+        pendingVerification = new PendingVerification(user.getId(), password, valid);
+        return user;
+    }
+
+    private UserModel getUser(RealmModel realm, String type, String search) {
+        if (identities.contains(realm, type, search)) {
+            log("User %s=%s already resolved in this session", type, search);
+            return identities.get(realm, type, search);
+        }
+        RemoteUserCache.Entry cached = userCache.get(type, search);
+        if (cached != null) {
+            log("Cached user %s=%s found=%s", type, search, !cached.isMissing());
+            if (cached.isMissing()) {
+                identities.putMissing(realm, type, search);
                 return null;
             }
-            log("Remote user %s", userEntity.toString());
-            return mapUser(realm, userEntity);
+            return mapUser(realm, cached.getEntity());
+        }
+        return loadUser(realm, type, search);
+    }
+
+    /**
+     * Fetches a user that is not in the cache from the remote server, revalidating an expired copy when possible.
+     */
+    private UserModel loadUser(RealmModel realm, String type, String search) {
+        RemoteUserEntity expired = userCache.getRevalidatable(type, search);
+        RemoteUserEntity userEntity;
+        try {
+            userEntity = expired != null ? userService.revalidateUser(type, search, expired) : switch (type) {
+                case "id" -> userService.getUserById(search);
+                case "username" -> userService.getUserByUsername(search);
+                case "email" -> userService.getUserByEmail(search);
+                default -> null;
+            };
         } catch (Exception e) {
-            log("Remote server error %s", e.getMessage());
+            RemoteUserEntity stale = userCache.getStale(type, search);
+            if (stale != null) {
+                logger.warnf("Remote server error, serving cached user %s=%s: %s", type, search, e.getMessage());
+                return mapUser(realm, stale);
+            }
+            // Reporting the user as missing would turn an outage into failed logins with "invalid username"
+            throw new ModelException("Remote user service unavailable: " + e.getMessage(), e);
+        }
+        if (userEntity == null) {
+            log("Remote user not found");
+            if (expired != null) {
+                userCache.invalidate(expired.getId());
+            }
+            userCache.putMissing(type, search);
+            identities.putMissing(realm, type, search);
             return null;
         }
+        if (userEntity == expired) {
+            log("Remote user %s=%s not modified", type, search);
+            userCache.renew(userEntity);
+            return mapUser(realm, userEntity);
+        }
+        log("Remote user %s", userEntity);
+        userCache.put(userEntity);
+        return mapUser(realm, userEntity);
     }
 
+    /**
+     * @return the adapter of the user, the same one for every lookup of the user within this session.
+     */
     private UserModel mapUser(RealmModel realm, RemoteUserEntity userEntity) {
-        return new RemoteUserAdapter(model, session, realm, model, userEntity);
+        return identities.map(realm, userEntity, entity -> new RemoteUserAdapter(model, session, realm, model, entity, roleMapper,
+                debugEnabled, addRolesToToken));
     }
 
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realmModel, Map<String, String> params, Integer firstResult, Integer maxResults) {
         log("Search users: param=%s, firstResult=%d, maxResults=%d", params, firstResult, maxResults);
+        Map<String, String> query = new HashMap<>(params);
+        query.putIfAbsent("method", "user");
+        if (!isSearchCacheable(maxResults)) {
+            return userService.streamUsers(query, firstResult, maxResults).map(entity -> mapUser(realmModel, entity));
+        }
+        RemoteSearchCache.Key key = RemoteSearchCache.key(query, firstResult, maxResults);
+        List<UserModel> cached = getCachedSearch(realmModel, key);
+        if (cached != null) {
+            log("Search page %s served from cache", key);
+            return cached.stream();
+        }
+        List<RemoteUserEntity> found;
         try {
-            if (!params.containsKey("method")) {
-                params.put("method", "user");
-            }
-            List<RemoteUserEntity> userEntities = userService.searchUsers(params, firstResult, maxResults);
-            return userEntities.stream().map(entity -> mapUser(realmModel, entity));
+            found = userService.searchUsers(query, firstResult, maxResults);
         } catch (IOException e) {
-            log(e.getMessage());
-            return Stream.empty();
+            // Like the paged search, an outage must not read as "no users found"; nothing is cached
+            throw new UncheckedIOException("Remote search failed: " + e.getMessage(), e);
+        }
+        if (found == null) {
+            found = List.of();
+        } else if (found.size() > maxResults) {
+            found = found.subList(0, maxResults);
+        }
+        if (found.stream().allMatch(entity -> entity.getId() != null)) {
+            found.forEach(userCache::putIfAbsent);
+            searchCache.put(key, found.stream().map(RemoteUserEntity::getId).toList());
+        }
+        return found.stream().map(entity -> mapUser(realmModel, entity));
+    }
+
+    /**
+     * Only pages fetched with a single search call are cached, the way the admin console pages through users.
+     * Their users must be kept in the user cache, which the cached pages point into.
+     */
+    private boolean isSearchCacheable(Integer maxResults) {
+        return searchCache.isEnabled() && userCache.isEnabled() && maxResults != null && maxResults > 0 && maxResults <= pageSize;
+    }
+
+    /**
+     * @return the users of a cached search page, or {@code null} if the page is not cached or one of its users is no longer.
+     */
+    private List<UserModel> getCachedSearch(RealmModel realm, RemoteSearchCache.Key key) {
+        List<String> ids = searchCache.get(key);
+        if (ids == null) {
+            return null;
         }
+        List<UserModel> users = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            UserModel user = identities.get(realm, RemoteUserCache.TYPE_ID, id);
+            if (user == null) {
+                RemoteUserCache.Entry entry = userCache.get(RemoteUserCache.TYPE_ID, id);
+                if (entry == null || entry.isMissing()) {
+                    searchCache.invalidate(key);
+                    return null;
+                }
+                user = mapUser(realm, entry.getEntity());
+            }
+            users.add(user);
+        }
+        return users;
     }
 
     @Override
@@ -212,43 +496,122 @@ public class RemoteUserProvider implements UserStorageProvider,
         return searchForUserStream(realm, params, firstResult, maxResults);
     }
 
-    /**
-     * Returns empty stream as the remote user provider does not support group membership.
-     *
-     * @param realm a reference to the realm.
-     * @param group a reference to the group.
-     * @return an empty stream.
-     */
     @Override
     public Stream<UserModel> getGroupMembersStream(RealmModel realm, GroupModel group) {
-        return Stream.empty();
+        return getGroupMembersStream(realm, group, null, null);
     }
 
     /**
-     * Returns empty stream as the remote user provider does not support group membership.
+     * Streams the remote members of a group from the cached group members, ordered by id. <br>
+     * Members are resolved a page at a time; with a bulk find endpoint, the members of a page that are not cached
+     * are fetched with one remote call.
      *
-     * @param realmModel a reference to the realm.
-     * @param groupModel a reference to the group.
-     * @param integer    first result to return. Ignored if negative, zero, or {@code null}.
-     * @param integer1   maximum number of results to return. Ignored if negative or {@code null}.
-     * @return an empty stream.
+     * @param realm       a reference to the realm.
+     * @param group       a reference to the group, matched by name with the remote groups.
+     * @param firstResult first result to return. Ignored if negative, zero, or {@code null}.
+     * @param maxResults  maximum number of results to return. Ignored if negative or {@code null}.
+     * @return the members, empty if no group members endpoint is configured.
      */
     @Override
-    public Stream<UserModel> getGroupMembersStream(RealmModel realmModel, GroupModel groupModel, Integer integer, Integer integer1) {
-        return Stream.empty();
+    public Stream<UserModel> getGroupMembersStream(RealmModel realm, GroupModel group, Integer firstResult, Integer maxResults) {
+        log("Get members of group %s: firstResult=%s, maxResults=%s", group.getName(), firstResult, maxResults);
+        if (groupMembers == null) {
+            return Stream.empty();
+        }
+        List<String> ids = Arrays.asList(groupMembers.getMembers(group.getName()));
+        int from = firstResult == null || firstResult < 0 ? 0 : Math.min(firstResult, ids.size());
+        int to = maxResults == null || maxResults < 0 ? ids.size() : (int) Math.min(ids.size(), (long) from + maxResults);
+        return IntStream.iterate(from, offset -> offset < to, offset -> offset + pageSize)
+                .mapToObj(offset -> ids.subList(offset, Math.min(to, offset + pageSize)))
+                .flatMap(page -> getUsersById(realm, page).stream());
+    }
+
+    private List<UserModel> getUsersById(RealmModel realm, List<String> ids) {
+        Map<String, RemoteUserEntity> found = new HashMap<>();
+        List<String> uncached = new ArrayList<>();
+        for (String id : ids) {
+            if (identities.contains(realm, RemoteUserCache.TYPE_ID, id)) {
+                continue;
+            }
+            RemoteUserCache.Entry cached = userCache.get(RemoteUserCache.TYPE_ID, id);
+            if (cached == null) {
+                uncached.add(id);
+            } else if (!cached.isMissing()) {
+                found.put(id, cached.getEntity());
+            }
+        }
+        if (uncached.size() > 1 && userService.isBulkFindEnabled()) {
+            try {
+                for (RemoteUserEntity user : userService.findUsers(RemoteUserCache.TYPE_ID, uncached)) {
+                    userCache.put(user);
+                    found.put(user.getId(), user);
+                }
+                for (String id : uncached) {
+                    if (!found.containsKey(id)) {
+                        userCache.putMissing(RemoteUserCache.TYPE_ID, id);
+                        identities.putMissing(realm, RemoteUserCache.TYPE_ID, id);
+                    }
+                }
+                uncached.clear();
+            } catch (Exception e) {
+                logger.warnf("Bulk find of %d group members failed, finding them one by one: %s", uncached.size(), e.getMessage());
+            }
+        }
+        Set<String> remaining = new HashSet<>(uncached);
+        List<UserModel> users = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            RemoteUserEntity user = found.get(id);
+            UserModel member;
+            if (user != null) {
+                member = mapUser(realm, user);
+            } else if (remaining.contains(id)) {
+                member = loadUser(realm, RemoteUserCache.TYPE_ID, id);
+            } else {
+                member = identities.get(realm, RemoteUserCache.TYPE_ID, id);
+            }
+            if (member != null) {
+                users.add(member);
+            }
+        }
+        return users;
     }
 
     /**
-     * Returns empty stream as the remote user provider does not support group membership.
+     * Finds users by an attribute value. <br>
+     * With remote attribute search enabled, the search endpoint is asked with {@code method=attribute}; the users it returns
+     * are cached, and so indexed, and followed by the indexed cached users holding the value that it did not return.
+     * Otherwise only the attribute index of the user cache is searched, which is complete only while a full
+     * synchronization keeps every remote user cached.
      *
-     * @param realmModel a reference to the realm.
-     * @param s          the attribute name.
-     * @param s1         the attribute value.
-     * @return an empty stream.
+     * @param realm a reference to the realm.
+     * @param name  the attribute name.
+     * @param value the attribute value.
+     * @return the users holding the value, empty if there is none or the attribute is neither indexed nor searched remotely.
      */
     @Override
-    public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realmModel, String s, String s1) {
-        return Stream.empty();
+    public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realm, String name, String value) {
+        List<RemoteUserEntity> cached = userCache.findByAttribute(name, value);
+        log("Search users by attribute %s=%s, indexed users found: %s", name, value, cached == null ? "not indexed" : cached.size());
+        if (!attributeSearchRemote) {
+            return cached == null ? Stream.empty() : cached.stream().map(entity -> mapUser(realm, entity));
+        }
+        Map<String, String> query = new HashMap<>();
+        query.put("method", "attribute");
+        query.put("attribute", name);
+        query.put("value", value);
+        Set<String> found = new HashSet<>();
+        Stream<UserModel> remote = userService.streamUsers(query, null, null).map(entity -> {
+            found.add(entity.getId());
+            userCache.putIfAbsent(entity);
+            return mapUser(realm, entity);
+        });
+        if (cached == null || cached.isEmpty()) {
+            return remote;
+        }
+        // Consumed after the remote users, so found holds all of them by then
+        return Stream.concat(remote, cached.stream()
+                .filter(entity -> !found.contains(entity.getId()))
+                .map(entity -> mapUser(realm, entity)));
     }
 
     /**
@@ -287,7 +650,7 @@ public class RemoteUserProvider implements UserStorageProvider,
     }
 
     private void log(String message, Object... params) {
-        if (Boolean.parseBoolean(model.get(DEBUG_ENABLED))) {
+        if (debugEnabled) {
             logger.infof(message, params);
         }
     }
@@ -301,4 +664,16 @@ public class RemoteUserProvider implements UserStorageProvider,
     public boolean removeUser(RealmModel realm, UserModel user) {
         return false;
     }
+
+    /**
+     * Password verification result obtained together with the user lookup, consumed by the next {@link #isValid} call
+     * for the same user and password.
+     */
+    private record PendingVerification(String userId, String password, boolean valid) {
+
+        boolean matches(UserModel user, String password) {
+            return userId.equals(user.getId()) && password != null
+                    && MessageDigest.isEqual(this.password.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8));
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package fis.baolm2.keycloak.provider.federation;
 
-import fis.baolm2.keycloak.service.UserService;
+import fis.baolm2.keycloak.cache.RemoteClusterUserCache;
+import fis.baolm2.keycloak.cache.RemoteUserSnapshot;
+import fis.baolm2.keycloak.http.RemoteInstanceBalancer;
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
@@ -12,33 +14,168 @@ import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static fis.baolm2.keycloak.constant.RemoteUserStorageProviderConstants.*;
 
-public class RemoteUserProviderFactory implements UserStorageProviderFactory<RemoteUserProvider> {
+public class RemoteUserProviderFactory implements UserStorageProviderFactory<RemoteUserProvider>, ImportSynchronization {
 
     private static final Logger logger = Logger.getLogger(RemoteUserProviderFactory.class);
     protected final List<ProviderConfigProperty> configMetadata;
+    private final Map<String, RemoteComponentContext> contexts = new ConcurrentHashMap<>();
 
     public RemoteUserProviderFactory() {
         this.configMetadata = ProviderConfigurationBuilder.create()
-                .property().name(REMOTE_PROVIDER_URL).label("Remote Server").type(ProviderConfigProperty.STRING_TYPE).defaultValue("https://").helpText("If this keycloak running in a docker container, you can use `http://host.docker.internal:port` to access the provider on your local machine.").required(true).add()
+                .property().name(REMOTE_PROVIDER_URL).label("Remote Server").type(ProviderConfigProperty.STRING_TYPE).defaultValue("https://").helpText("Comma-separated base URLs of the remote server instances. If this keycloak running in a docker container, you can use `http://host.docker.internal:port` to access the provider on your local machine.").required(true).add()
                 .property().name(AUTHORIZATION_USERNAME).label("Authorization Username").type(ProviderConfigProperty.STRING_TYPE).defaultValue("admin").helpText("Authorization header value to access the remote server.").required(true).add()
                 .property().name(AUTHORIZATION_PASSWORD).label("Authorization Password").type(ProviderConfigProperty.PASSWORD).defaultValue("admin").helpText("Authorization header value to access the remote server. This password will be hidden after you create provider.").required(true).secret(true).add()
                 .property().name(FIND_USER_ENDPOINT).label("Find User Endpoint").type(ProviderConfigProperty.STRING_TYPE).defaultValue("/users").helpText("Endpoint to find a user by username.").required(true).add()
                 .property().name(VERIFY_USER_ENDPOINT).label("Verify User Endpoint").type(ProviderConfigProperty.STRING_TYPE).defaultValue("/verify").helpText("Endpoint to verify a user's password.").required(true).add()
+                .property().name(AUTHENTICATE_USER_ENDPOINT).label("Authenticate User Endpoint").type(ProviderConfigProperty.STRING_TYPE).helpText("Optional endpoint finding a user and verifying its password in one request. When set, password logins use it instead of separate find and verify calls.").required(false).add()
                 .property().name(SEARCH_USER_ENDPOINT).label("Search User Endpoint").type(ProviderConfigProperty.STRING_TYPE).defaultValue("/users").helpText("Endpoint to search users.").required(true).add()
                 .property().name(COUNT_USER_ENDPOINT).label("Count User Endpoint").type(ProviderConfigProperty.STRING_TYPE).defaultValue("/users/count").helpText("Endpoint to count users.").required(true).add()
+                .property().name(BULK_FIND_USER_ENDPOINT).label("Bulk Find User Endpoint").type(ProviderConfigProperty.STRING_TYPE).helpText("Optional endpoint to find many users in one request. When set, concurrent single user lookups are batched into calls to this endpoint.").required(false).add()
+                .property().name(GROUP_MEMBERS_ENDPOINT).label("Group Members Endpoint").type(ProviderConfigProperty.STRING_TYPE).helpText("Optional endpoint listing the ids of a group's members. When set, Keycloak groups of the same name list and count remote members.").required(false).add()
+                .property().name(GROUP_MEMBERS_CACHE_TTL).label("Group Members Cache TTL").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_GROUP_MEMBERS_CACHE_TTL)).helpText("Seconds after which cached group members are refreshed in the background. Set 0 to disable the cache.").required(false).add()
+                .property().name(BATCH_WINDOW).label("Bulk Find Window").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_BATCH_WINDOW)).helpText("Milliseconds single user lookups are gathered before they are sent to the bulk find endpoint.").required(false).add()
+                .property().name(BATCH_MAX_SIZE).label("Bulk Find Max Batch").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_BATCH_MAX_SIZE)).helpText("Maximum number of users per bulk find request. A full batch is sent without waiting for the window to close.").required(false).add()
+                .property().name(SYNC_BATCH_SIZE).label("Synchronization Batch Size").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_SYNC_BATCH_SIZE)).helpText("Users fetched and imported per page during synchronization.").required(false).add()
+                .property().name(SYNC_PARALLELISM).label("Synchronization Parallelism").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_SYNC_PARALLELISM)).helpText("Pages fetched concurrently during synchronization.").required(false).add()
+                .property().name(LOGIN_LIMIT_PER_USERNAME).label("Login Attempts per Username").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_LOGIN_LIMIT_PER_USERNAME)).helpText("Password attempts per username and minute sent to the verify endpoint. Further attempts fail without a remote call. Set 0 for no limit.").required(false).add()
+                .property().name(LOGIN_LIMIT_PER_SOURCE).label("Login Attempts per Source").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_LOGIN_LIMIT_PER_SOURCE)).helpText("Password attempts per client address and minute sent to the verify endpoint. Further attempts fail without a remote call. Set 0 for no limit.").required(false).add()
+                .property().name(LOGIN_FAILURE_MEMORY).label("Failed Login Memory").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_LOGIN_FAILURE_MEMORY)).helpText("Seconds a username and password pair rejected by the remote server is rejected locally when tried again. Set 0 to disable.").required(false).add()
+                .property().name(SEARCH_CACHE_TTL).label("Search Cache TTL").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_SEARCH_CACHE_TTL)).helpText("Seconds a page of search results is served from the cache, so paging back and forth does not query the remote server again. Requires the user cache. Set 0 to disable.").required(false).add()
+                .property().name(SEARCH_CACHE_MAX_SIZE).label("Search Cache Max Size").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_SEARCH_CACHE_MAX_SIZE)).helpText("Maximum number of cached search result pages.").required(false).add()
                 .property().name(ADD_ROLES_TO_TOKEN).label("Add Roles to Token").type(ProviderConfigProperty.BOOLEAN_TYPE).defaultValue(true).helpText("Add roles to token. This will help you to use roles in your application.").required(true).add()
+                .property().name(HTTP_MAX_CONNECTIONS).label("HTTP Max Connections").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_HTTP_MAX_CONNECTIONS)).helpText("Size of the keep-alive connection pool to the remote server.").required(false).add()
+                .property().name(HTTP_KEEP_ALIVE).label("HTTP Keep-Alive").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_HTTP_KEEP_ALIVE)).helpText("Seconds an idle pooled connection is kept open, unless the remote server asks for less.").required(false).add()
+                .property().name(HTTP_CONNECT_TIMEOUT).label("HTTP Connect Timeout").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_HTTP_CONNECT_TIMEOUT)).helpText("Milliseconds to wait for a connection to the remote server.").required(false).add()
+                .property().name(HTTP_READ_TIMEOUT).label("HTTP Read Timeout").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_HTTP_READ_TIMEOUT)).helpText("Milliseconds to wait for data from the remote server.").required(false).add()
+                .property().name(FIND_DEADLINE).label("Find Deadline").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_FIND_DEADLINE)).helpText("Milliseconds a find user call may take in total before it is aborted. Set 0 for no deadline.").required(false).add()
+                .property().name(VERIFY_DEADLINE).label("Verify Deadline").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_VERIFY_DEADLINE)).helpText("Milliseconds a verify password call may take in total before it is aborted. Set 0 for no deadline.").required(false).add()
+                .property().name(SEARCH_DEADLINE).label("Search Deadline").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_SEARCH_DEADLINE)).helpText("Milliseconds a search users call may take in total before it is aborted. Set 0 for no deadline.").required(false).add()
+                .property().name(COUNT_DEADLINE).label("Count Deadline").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_COUNT_DEADLINE)).helpText("Milliseconds a count users call may take in total before it is aborted. Set 0 for no deadline.").required(false).add()
+                .property().name(BULKHEAD_MAX_CONCURRENT).label("Max Concurrent Remote Calls").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_HTTP_MAX_CONNECTIONS)).helpText("Calls beyond this many in flight fail fast instead of tying up more Keycloak worker threads.").required(false).add()
+                .property().name(CIRCUIT_FAILURE_THRESHOLD).label("Circuit Breaker Failures").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_CIRCUIT_FAILURE_THRESHOLD)).helpText("Consecutive remote failures after which calls fail fast. Cached users are served meanwhile. Set 0 to disable.").required(false).add()
+                .property().name(CIRCUIT_OPEN_DURATION).label("Circuit Breaker Open Duration").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_CIRCUIT_OPEN_DURATION)).helpText("Seconds calls fail fast before a single probe call checks whether the remote server recovered.").required(false).add()
+                .property().name(EJECTION_FAILURE_THRESHOLD).label("Instance Ejection Failures").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_EJECTION_FAILURE_THRESHOLD)).helpText("With several remote server URLs, consecutive failures after which an instance receives no calls for a while. Set 0 to never eject.").required(false).add()
+                .property().name(EJECTION_DURATION).label("Instance Ejection Duration").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_EJECTION_DURATION)).helpText("Seconds an ejected instance receives no calls.").required(false).add()
+                .property().name(HEDGING_ENABLED).label("Hedge Slow Requests").type(ProviderConfigProperty.BOOLEAN_TYPE).defaultValue(false).helpText("With several remote server URLs, send a find, search, count or group members request once more to another instance when it takes longer than 95% of recent ones. The first answer is used.").required(false).add()
+                .property().name(BINARY_FORMAT_ENABLED).label("Accept Binary Format").type(ProviderConfigProperty.BOOLEAN_TYPE).defaultValue(false).helpText("Ask the remote server for CBOR encoded responses. JSON responses are still accepted.").required(false).add()
+                .property().name(SEARCH_PAGE_SIZE).label("Search Page Size").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_SEARCH_PAGE_SIZE)).helpText("Number of users requested per call to the search endpoint. Further pages are requested only while results are consumed.").required(false).add()
+                .property().name(SEARCH_PREFETCH_ENABLED).label("Prefetch Search Pages").type(ProviderConfigProperty.BOOLEAN_TYPE).defaultValue(false).helpText("Request the next search page in the background while the current one is consumed.").required(false).add()
+                .property().name(SEARCH_PARALLELISM).label("Search Parallelism").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_SEARCH_PARALLELISM)).helpText("Pages fetched concurrently when a search needs more than one page. Above 1, the results are counted first so no page beyond the end is requested.").required(false).add()
+                .property().name(USER_CACHE_TTL).label("User Cache TTL").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_USER_CACHE_TTL)).helpText("Seconds a remote user is kept in the shared cache. Set 0 to disable the cache.").required(false).add()
+                .property().name(USER_CACHE_NEGATIVE_TTL).label("User Cache Not Found TTL").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_USER_CACHE_NEGATIVE_TTL)).helpText("Seconds a \"user not found\" answer is cached. Set 0 to disable negative caching.").required(false).add()
+                .property().name(CACHE_MODE).label("User Cache Mode").type(ProviderConfigProperty.LIST_TYPE).options(RemoteClusterUserCache.MODE_LOCAL, RemoteClusterUserCache.MODE_CLUSTER).defaultValue(RemoteClusterUserCache.MODE_LOCAL).helpText("local: every node caches users on its own, cluster: nodes also share cached users and invalidations through Keycloak's Infinispan cache.").required(false).add()
+                .property().name(CLUSTER_CACHE_NAME).label("Cluster Cache Name").type(ProviderConfigProperty.STRING_TYPE).defaultValue("work").helpText("Replicated Infinispan cache holding the shared users in cluster mode.").required(false).add()
+                .property().name(SNAPSHOT_DIRECTORY).label("User Cache Snapshot Directory").type(ProviderConfigProperty.STRING_TYPE).helpText("Local directory where the user cache is saved, so it is restored after a restart. Leave empty to disable.").required(false).add()
+                .property().name(SNAPSHOT_COMPACTION_INTERVAL).label("User Cache Snapshot Compaction Interval").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_SNAPSHOT_COMPACTION_INTERVAL)).helpText("Seconds between rewrites of the snapshot file from the cache content.").required(false).add()
+                .property().name(USER_CACHE_MAX_SIZE).label("User Cache Max Size").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_USER_CACHE_MAX_SIZE)).helpText("Maximum number of cached users. The least recently used users are evicted first.").required(false).add()
+                .property().name(INDEXED_ATTRIBUTES).label("Indexed Attributes").type(ProviderConfigProperty.STRING_TYPE).helpText("Comma-separated attribute names of cached users to index for attribute searches, * for all attributes. Leave empty to disable.").required(false).add()
+                .property().name(ATTRIBUTE_SEARCH_REMOTE).label("Remote Attribute Search").type(ProviderConfigProperty.BOOLEAN_TYPE).defaultValue(false).helpText("Search the remote server for attribute values, merged with the indexed cached users. Without it only the index is searched, which is complete only while a full synchronization keeps every remote user cached.").required(false).add()
+                .property().name(COUNT_CACHE_TTL).label("User Count Cache TTL").type(ProviderConfigProperty.STRING_TYPE).defaultValue(String.valueOf(DEFAULT_COUNT_CACHE_TTL)).helpText("Seconds after which a cached user count is refreshed in the background. The last known count is served meanwhile. Set 0 to disable.").required(false).add()
+                .property().name(ROLE_PROVISIONING_POLICY).label("Missing Role Provisioning").type(ProviderConfigProperty.LIST_TYPE).options(RemoteRoleProvisioner.POLICY_ASYNC, RemoteRoleProvisioner.POLICY_INLINE, RemoteRoleProvisioner.POLICY_DISABLED).defaultValue(RemoteRoleProvisioner.POLICY_ASYNC).helpText("How remote roles missing in the realm are created when roles are added to token. async: created in a batched background transaction and included once they exist, inline: created during the token request, disabled: never created.").required(false).add()
                 .property().name(DEBUG_ENABLED).label("Enable Detail Logs").type(ProviderConfigProperty.BOOLEAN_TYPE).defaultValue(false).helpText("Enable detail logs to debug.").required(true).add()
                 .build();
     }
 
     @Override
     public RemoteUserProvider create(KeycloakSession session, ComponentModel model) {
-        return new RemoteUserProvider(session, model, new UserService(model, session));
+        RemoteComponentContext context = getContext(session.getKeycloakSessionFactory(), model);
+        return new RemoteUserProvider(session, model, context.getUserService(), context);
+    }
+
+    /**
+     * Returns the context of the component, recreating it when the component's configuration changed since it was created,
+     * which is how nodes other than the one the change was saved on pick it up.
+     */
+    RemoteComponentContext getContext(KeycloakSessionFactory sessionFactory, ComponentModel model) {
+        RemoteComponentContext context = contexts.get(model.getId());
+        if (context != null && context.isConfiguredBy(model)) {
+            return context;
+        }
+        synchronized (contexts) {
+            context = contexts.get(model.getId());
+            if (context != null && context.isConfiguredBy(model)) {
+                return context;
+            }
+            if (context != null) {
+                logger.infof("Configuration of %s changed, recreating its remote client and caches", model.getName());
+                // Closed first, so its snapshot is written before the new context reads it
+                contexts.remove(model.getId());
+                context.close();
+            }
+            context = new RemoteComponentContext(model, sessionFactory);
+            contexts.put(model.getId(), context);
+            return context;
+        }
+    }
+
+    private void closeContext(ComponentModel model) {
+        synchronized (contexts) {
+            RemoteComponentContext context = contexts.remove(model.getId());
+            if (context != null) {
+                context.close();
+            }
+        }
+    }
+
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        logger.infof("Full synchronization of remote users for %s", model.getName());
+        return newSynchronizer(sessionFactory, model).synchronize(null);
+    }
+
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        logger.infof("Synchronization of remote users changed since %s for %s", lastSync, model.getName());
+        return newSynchronizer(sessionFactory, model).synchronize(lastSync);
+    }
+
+    private RemoteUserSynchronizer newSynchronizer(KeycloakSessionFactory sessionFactory, UserStorageProviderModel model) {
+        RemoteComponentContext context = getContext(sessionFactory, model);
+        return new RemoteUserSynchronizer(model, context.getUserService(), context.getUserCache(), context.getBackgroundExecutor());
+    }
+
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        closeContext(oldModel);
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        closeContext(model);
+        deleteSnapshot(model);
+    }
+
+    private static void deleteSnapshot(ComponentModel model) {
+        String directory = model.get(SNAPSHOT_DIRECTORY);
+        if (directory == null || directory.isBlank()) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(RemoteUserSnapshot.file(Path.of(directory.trim()), model.getId()));
+        } catch (IOException | InvalidPathException e) {
+            logger.warnf("Unable to delete user cache snapshot of %s: %s", model.getName(), e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        contexts.values().forEach(RemoteComponentContext::close);
+        contexts.clear();
     }
 
     @Override
@@ -72,12 +209,48 @@ public class RemoteUserProviderFactory implements UserStorageProviderFactory<Rem
         String comment = "";
 
         final String url = config.get(REMOTE_PROVIDER_URL);
-        if (url != null && url.length() < URL_MIN_LENGTH) {
+        if (url != null && (RemoteInstanceBalancer.parseBaseUrls(url).isEmpty()
+                || RemoteInstanceBalancer.parseBaseUrls(url).stream().anyMatch(baseUrl -> baseUrl.length() < URL_MIN_LENGTH))) {
             valid = false;
             comment = "Please check the url.";
         }
+        for (String property : List.of(HTTP_MAX_CONNECTIONS, HTTP_KEEP_ALIVE, HTTP_CONNECT_TIMEOUT, HTTP_READ_TIMEOUT,
+                FIND_DEADLINE, VERIFY_DEADLINE, SEARCH_DEADLINE, COUNT_DEADLINE, BULKHEAD_MAX_CONCURRENT, CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_DURATION,
+                EJECTION_FAILURE_THRESHOLD, EJECTION_DURATION,
+                SEARCH_PAGE_SIZE, SEARCH_PARALLELISM, BATCH_WINDOW, BATCH_MAX_SIZE, SYNC_BATCH_SIZE, SYNC_PARALLELISM,
+                LOGIN_LIMIT_PER_USERNAME, LOGIN_LIMIT_PER_SOURCE, LOGIN_FAILURE_MEMORY,
+                USER_CACHE_TTL, USER_CACHE_NEGATIVE_TTL, USER_CACHE_MAX_SIZE, SNAPSHOT_COMPACTION_INTERVAL, COUNT_CACHE_TTL,
+                SEARCH_CACHE_TTL, SEARCH_CACHE_MAX_SIZE, GROUP_MEMBERS_CACHE_TTL)) {
+            if (!isNonNegativeNumber(config.get(property))) {
+                valid = false;
+                comment = "Please check the " + property + ", it must be a non-negative integer.";
+            }
+        }
+        final String snapshotDirectory = config.get(SNAPSHOT_DIRECTORY);
+        if (snapshotDirectory != null && !snapshotDirectory.isBlank()) {
+            try {
+                Path.of(snapshotDirectory.trim());
+            } catch (InvalidPathException e) {
+                valid = false;
+                comment = "Please check the " + SNAPSHOT_DIRECTORY + ", it must be a valid path.";
+            }
+        }
         if (!valid) {
             throw new ComponentValidationException("Unable to validate configuration. Err: " + comment);
         }
     }
+
+    /**
+     * Parses the value exactly like {@link ComponentModel#get(String, int)} will, so a value accepted here cannot fail later.
+     */
+    private static boolean isNonNegativeNumber(String value) {
+        if (value == null) {
+            return true;
+        }
+        try {
+            return Integer.parseInt(value) >= 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 }
@@ -0,0 +1,178 @@
+package fis.baolm2.keycloak.provider.federation;
+
+import fis.baolm2.keycloak.cache.RemoteUserCache;
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+import fis.baolm2.keycloak.service.UserService;
+import org.jboss.logging.Logger;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static fis.baolm2.keycloak.constant.RemoteUserStorageProviderConstants.*;
+
+/**
+ * Imports remote users into the component's local user store for the full and changed users synchronization. <br>
+ * Users are pulled from the search endpoint page by page, fetching up to {@code parallelism} pages at a time,
+ * and each page is written as one bounded unit. Imported users are kept until the next synchronization is due,
+ * so lookups on the login path are answered locally instead of calling the remote server.
+ * A completed full synchronization invalidates the cached users the remote server no longer lists,
+ * so removed users are not served from the cache until their import expires.
+ */
+public class RemoteUserSynchronizer {
+
+    private static final Logger logger = Logger.getLogger(RemoteUserSynchronizer.class);
+
+    static final String CHANGED_SINCE_PARAM = "changedSince";
+    private static final String SEARCH_PARAM = "keycloak.session.realm.users.query.search";
+
+    private final UserService userService;
+    private final RemoteUserCache userCache;
+    private final ExecutorService executor;
+    private final int batchSize;
+    private final int parallelism;
+    private final long importTtlMillis;
+
+    public RemoteUserSynchronizer(UserStorageProviderModel model, UserService userService, RemoteUserCache userCache, ExecutorService executor) {
+        this.userService = userService;
+        this.userCache = userCache;
+        this.executor = executor;
+        this.batchSize = Math.max(1, model.get(SYNC_BATCH_SIZE, DEFAULT_SYNC_BATCH_SIZE));
+        this.parallelism = Math.max(1, model.get(SYNC_PARALLELISM, DEFAULT_SYNC_PARALLELISM));
+        // Keep imported users until the following synchronization has had a chance to refresh them
+        long syncPeriodSeconds = Math.max(model.getFullSyncPeriod(), model.getChangedSyncPeriod());
+        this.importTtlMillis = Math.max(userCache.getTtlMillis(), TimeUnit.SECONDS.toMillis(2 * syncPeriodSeconds));
+    }
+
+    /**
+     * @param since {@code null} for a full synchronization, otherwise only users created or updated after it are imported.
+     */
+    public SynchronizationResult synchronize(Date since) {
+        SynchronizationResult result = new SynchronizationResult();
+        if (!userCache.isEnabled()) {
+            logger.warn("User cache is disabled, nothing to synchronize into");
+            return result;
+        }
+        Map<String, String> params = new HashMap<>();
+        params.put("method", "user");
+        params.put(SEARCH_PARAM, "*");
+        if (since != null) {
+            params.put(CHANGED_SINCE_PARAM, since.toInstant().toString());
+        }
+        long evictionsBefore = userCache.getEvictions();
+        Set<String> seen = new HashSet<>();
+        int offset = 0;
+        boolean more = true;
+        while (more) {
+            List<CompletableFuture<List<RemoteUserEntity>>> pages = new ArrayList<>(parallelism);
+            for (int i = 0; i < parallelism; i++) {
+                int pageOffset = offset + i * batchSize;
+                pages.add(CompletableFuture.supplyAsync(() -> fetch(params, pageOffset), executor));
+            }
+            offset += parallelism * batchSize;
+            for (CompletableFuture<List<RemoteUserEntity>> page : pages) {
+                List<RemoteUserEntity> users;
+                try {
+                    users = page.join();
+                } catch (CompletionException e) {
+                    logger.warnf("Synchronization stopped, fetching a page failed: %s", e.getCause().getMessage());
+                    result.increaseFailed();
+                    pages.forEach(p -> p.cancel(true));
+                    return result;
+                }
+                write(users, since, result);
+                users.forEach(user -> seen.add(user.getId()));
+                if (users.size() < batchSize) {
+                    more = false;
+                }
+            }
+        }
+        if (since == null) {
+            invalidateUnseen(seen, result);
+        }
+        logger.infof("Synchronized remote users: %s", result.getStatus());
+        warnIfCacheTooSmall(result, userCache.getEvictions() - evictionsBefore);
+        return result;
+    }
+
+    /**
+     * Invalidates the cached users a full synchronization did not list, cluster-wide in cluster mode.
+     * A user missed because the listing shifted while it was paged through is simply fetched again on its next lookup.
+     */
+    private void invalidateUnseen(Set<String> seen, SynchronizationResult result) {
+        List<String> unseen = new ArrayList<>();
+        userCache.forEach((user, expiresAt) -> {
+            if (!seen.contains(user.getId())) {
+                unseen.add(user.getId());
+            }
+        });
+        for (String id : unseen) {
+            userCache.invalidate(id);
+            result.increaseRemoved();
+        }
+    }
+
+    /**
+     * Imported users live in the bounded user cache, so a directory larger than it evicts the least recently used ones
+     * again and those logins fall back to the remote server.
+     */
+    private void warnIfCacheTooSmall(SynchronizationResult result, long evicted) {
+        int imported = result.getAdded() + result.getUpdated();
+        if (imported > userCache.getMaxSize() || evicted > 0) {
+            logger.warnf("User cache holds at most %d users, synchronization imported %d and %d users were evicted; "
+                    + "raise User cache max size above the number of remote users", userCache.getMaxSize(), imported, evicted);
+        }
+    }
+
+    private List<RemoteUserEntity> fetch(Map<String, String> params, int offset) {
+        try {
+            List<RemoteUserEntity> users = userService.searchUsers(params, offset, batchSize);
+            return users == null ? List.of() : users;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private void write(List<RemoteUserEntity> users, Date since, SynchronizationResult result) {
+        for (RemoteUserEntity user : users) {
+            if (since != null && !changedSince(user, since.toInstant())) {
+                continue;
+            }
+            if (userCache.put(user, importTtlMillis)) {
+                result.increaseUpdated();
+            } else {
+                result.increaseAdded();
+            }
+        }
+    }
+
+    /**
+     * Uses {@code updatedAt}, or {@code createdAt} when the remote server does not track updates, as the change cursor.
+     * Users without a readable timestamp are always imported.
+     */
+    private static boolean changedSince(RemoteUserEntity user, Instant since) {
+        String timestamp = user.getUpdatedAt() != null ? user.getUpdatedAt() : user.getCreatedAt();
+        if (timestamp == null) {
+            return true;
+        }
+        try {
+            return !OffsetDateTime.parse(timestamp).toInstant().isBefore(since);
+        } catch (DateTimeParseException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package fis.baolm2.keycloak.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rejects obviously abusive password attempts before they reach the remote verify endpoint. <br>
+ * Attempts are limited per username and per source address with {@link StripedTokenBucket}s, and a username and password
+ * pair that just failed remote verification fails again locally until the failure expires. Credential stuffing tools
+ * replay the same pairs, so this absorbs repeats without weakening the verification itself: a rejected attempt is
+ * one the remote server would almost certainly have rejected too.
+ * <p>
+ * Failed pairs are kept as salted SHA-256 fingerprints in a fixed direct-mapped table, a newer failure replacing
+ * whatever shared its slot. Nothing here blocks, the cost of a check is a hash and a few atomic reads.
+ */
+public class LoginAttemptLimiter {
+
+    public static final String REJECTED_USERNAME = "username_limit";
+    public static final String REJECTED_SOURCE = "source_limit";
+    public static final String REJECTED_RECENT_FAILURE = "recent_failure";
+
+    private static final int STRIPES = 1 << 16;
+    private static final int FAILURE_SLOTS = 1 << 14;
+
+    private final StripedTokenBucket usernameBuckets;
+    private final StripedTokenBucket sourceBuckets;
+    private final long failureTtlMillis;
+    private final AtomicLongArray failureFingerprints;
+    private final AtomicLongArray failureExpiries;
+    private final byte[] salt = new byte[16];
+    private final long origin = System.nanoTime();
+
+    private final AtomicLong usernameRejections = new AtomicLong();
+    private final AtomicLong sourceRejections = new AtomicLong();
+    private final AtomicLong recentFailureRejections = new AtomicLong();
+
+    /**
+     * @param perUsernamePerMinute attempts allowed per username and minute, 0 for no limit.
+     * @param perSourcePerMinute   attempts allowed per source address and minute, 0 for no limit.
+     * @param failureTtlMillis     how long a failed pair is rejected locally, 0 to not remember failures.
+     */
+    public LoginAttemptLimiter(int perUsernamePerMinute, int perSourcePerMinute, long failureTtlMillis) {
+        this.usernameBuckets = perUsernamePerMinute > 0 ? new StripedTokenBucket(STRIPES, perUsernamePerMinute) : null;
+        this.sourceBuckets = perSourcePerMinute > 0 ? new StripedTokenBucket(STRIPES, perSourcePerMinute) : null;
+        this.failureTtlMillis = Math.max(0, failureTtlMillis);
+        this.failureFingerprints = this.failureTtlMillis > 0 ? new AtomicLongArray(FAILURE_SLOTS) : null;
+        this.failureExpiries = this.failureTtlMillis > 0 ? new AtomicLongArray(FAILURE_SLOTS) : null;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    public boolean isEnabled() {
+        return usernameBuckets != null || sourceBuckets != null || failureFingerprints != null;
+    }
+
+    /**
+     * Checks an attempt before it is verified remotely, taking a token from its username and source buckets.
+     *
+     * @param source the client address, {@code null} if unknown.
+     * @return {@code null} if the attempt may be verified, otherwise one of the {@code REJECTED_*} reasons.
+     */
+    public String check(String username, String password, String source) {
+        if (failureFingerprints != null && isRecentFailure(fingerprint(username, password))) {
+            recentFailureRejections.incrementAndGet();
+            return REJECTED_RECENT_FAILURE;
+        }
+        if (usernameBuckets != null && !usernameBuckets.tryAcquire(normalize(username))) {
+            usernameRejections.incrementAndGet();
+            return REJECTED_USERNAME;
+        }
+        if (sourceBuckets != null && source != null && !sourceBuckets.tryAcquire(source)) {
+            sourceRejections.incrementAndGet();
+            return REJECTED_SOURCE;
+        }
+        return null;
+    }
+
+    /**
+     * Remembers a pair the remote server rejected.
+     */
+    public void recordFailure(String username, String password) {
+        if (failureFingerprints == null) {
+            return;
+        }
+        long fingerprint = fingerprint(username, password);
+        int slot = slot(fingerprint);
+        // Expiry first, so a concurrent reader matching the new fingerprint never sees the expiry of the replaced one
+        failureExpiries.set(slot, now() + failureTtlMillis);
+        failureFingerprints.set(slot, fingerprint);
+    }
+
+    private boolean isRecentFailure(long fingerprint) {
+        int slot = slot(fingerprint);
+        return failureFingerprints.get(slot) == fingerprint && failureExpiries.get(slot) > now();
+    }
+
+    private long fingerprint(String username, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(normalize(username).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(password == null ? new byte[0] : password.getBytes(StandardCharsets.UTF_8));
+            long fingerprint = ByteBuffer.wrap(digest.digest()).getLong();
+            // 0 marks an empty slot
+            return fingerprint == 0 ? 1 : fingerprint;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static int slot(long fingerprint) {
+        return (int) (fingerprint ^ fingerprint >>> 32) & (FAILURE_SLOTS - 1);
+    }
+
+    private long now() {
+        return (System.nanoTime() - origin) / 1_000_000;
+    }
+
+    private static String normalize(String username) {
+        return username == null ? "" : username.toLowerCase(Locale.ROOT);
+    }
+
+    public long getUsernameRejections() {
+        return usernameRejections.get();
+    }
+
+    public long getSourceRejections() {
+        return sourceRejections.get();
+    }
+
+    public long getRecentFailureRejections() {
+        return recentFailureRejections.get();
+    }
+}
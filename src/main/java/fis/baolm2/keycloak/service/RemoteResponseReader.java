@@ -0,0 +1,77 @@
+package fis.baolm2.keycloak.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORMapper;
+import fis.baolm2.keycloak.dto.RemoteAuthenticateResponse;
+import fis.baolm2.keycloak.dto.RemoteCountResponse;
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+import fis.baolm2.keycloak.dto.RemoteVerifyPasswordResponse;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Decodes remote responses straight from the response stream. <br>
+ * The readers are immutable and thread-safe, so they are built once and shared by every component and session.
+ * Responses are decoded as CBOR when the remote server answers with {@link #CBOR_CONTENT_TYPE}, as JSON otherwise.
+ */
+public final class RemoteResponseReader {
+
+    public static final String CBOR_CONTENT_TYPE = "application/cbor";
+    public static final String JSON_CONTENT_TYPE = "application/json";
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final ObjectMapper CBOR = new CBORMapper();
+
+    public static final RemoteResponseReader USER = new RemoteResponseReader(RemoteUserEntity.class);
+    public static final RemoteResponseReader USER_LIST = new RemoteResponseReader(new TypeReference<List<RemoteUserEntity>>() {
+    });
+    public static final RemoteResponseReader ID_LIST = new RemoteResponseReader(new TypeReference<List<String>>() {
+    });
+    public static final RemoteResponseReader COUNT = new RemoteResponseReader(RemoteCountResponse.class);
+    public static final RemoteResponseReader VERIFY_PASSWORD = new RemoteResponseReader(RemoteVerifyPasswordResponse.class);
+    public static final RemoteResponseReader AUTHENTICATE = new RemoteResponseReader(RemoteAuthenticateResponse.class);
+
+    private static final ObjectWriter JSON_WRITER = JSON.writer();
+
+    private final ObjectReader jsonReader;
+    private final ObjectReader cborReader;
+
+    private RemoteResponseReader(Class<?> type) {
+        this.jsonReader = JSON.readerFor(type);
+        this.cborReader = CBOR.readerFor(type);
+    }
+
+    private RemoteResponseReader(TypeReference<?> type) {
+        this.jsonReader = JSON.readerFor(type);
+        this.cborReader = CBOR.readerFor(type);
+    }
+
+    /**
+     * @return the decoded value, or {@code null} if the entity has no content.
+     */
+    public <T> T read(HttpEntity entity) throws IOException {
+        ObjectReader reader = isCbor(entity.getContentType()) ? cborReader : jsonReader;
+        try (InputStream content = entity.getContent(); JsonParser parser = reader.createParser(content)) {
+            if (parser.nextToken() == null) {
+                return null;
+            }
+            return reader.readValue(parser);
+        }
+    }
+
+    public static byte[] writeJson(Object value) throws IOException {
+        return JSON_WRITER.writeValueAsBytes(value);
+    }
+
+    private static boolean isCbor(Header contentType) {
+        return contentType != null && contentType.getValue() != null && contentType.getValue().startsWith(CBOR_CONTENT_TYPE);
+    }
+}
@@ -0,0 +1,214 @@
+package fis.baolm2.keycloak.service;
+
+import fis.baolm2.keycloak.dto.RemoteCountResponse;
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+import fis.baolm2.keycloak.http.CallCancellation;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily pages through the remote search endpoint with {@code skip}/{@code take}. <br>
+ * A page is only requested when the consumer has used up the previous one, so short-circuiting operations stop the paging.
+ * When a prefetch executor is given, the next page is requested in the background while the current one is consumed.
+ * <p>
+ * With a parallelism above 1, the total is counted first and up to that many of the following pages are requested
+ * concurrently, up to the counted end. Pages are still handed out in order, so a large listing takes about the latency
+ * of its slowest pages instead of the sum of all of them. The count is only trusted as far as the results confirm it:
+ * while the last page before the counted end is full, paging continues sequentially past it.
+ * <p>
+ * A page that cannot be fetched fails the stream with an {@link UncheckedIOException} instead of ending it early,
+ * so callers do not mistake an outage for the end of the results. Closing the stream aborts the pages still in flight.
+ */
+public class RemoteUserPager implements Spliterator<RemoteUserEntity> {
+
+    private static final Logger logger = Logger.getLogger(RemoteUserPager.class);
+
+    private final UserService userService;
+    private final Map<String, String> params;
+    private final int pageSize;
+    private final Executor executor;
+    private final int parallelism;
+    private final CallCancellation cancellation = new CallCancellation();
+    // Exclusive end offset requested by the caller, Long.MAX_VALUE for no limit
+    private final long limit;
+    private final int sequentialPagesAhead;
+
+    private int nextOffset;
+    private int fetchOffset;
+    // Exclusive end offset of the results to fetch, Long.MAX_VALUE while unknown
+    private long end;
+    private int pagesAhead;
+    private boolean counted;
+    private boolean exhausted;
+    private Iterator<RemoteUserEntity> current = Collections.emptyIterator();
+    private final Deque<Page> pending = new ArrayDeque<>();
+
+    RemoteUserPager(UserService userService, Map<String, String> params, Integer firstResult, Integer maxResults, int pageSize,
+                    Executor executor, boolean prefetch, int parallelism) {
+        this.userService = userService;
+        this.params = params;
+        this.pageSize = pageSize;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.nextOffset = firstResult == null || firstResult < 0 ? 0 : firstResult;
+        this.fetchOffset = nextOffset;
+        this.limit = maxResults == null || maxResults < 0 ? Long.MAX_VALUE : (long) nextOffset + maxResults;
+        this.end = limit;
+        this.sequentialPagesAhead = prefetch ? 1 : 0;
+        this.pagesAhead = sequentialPagesAhead;
+        // Counting first only pays off when more than one page is needed
+        this.counted = parallelism <= 1 || limit - nextOffset <= pageSize;
+        this.exhausted = end == nextOffset;
+    }
+
+    static Stream<RemoteUserEntity> stream(UserService userService, Map<String, String> params, Integer firstResult, Integer maxResults, int pageSize,
+                                           Executor executor, boolean prefetch, int parallelism) {
+        RemoteUserPager pager = new RemoteUserPager(userService, params, firstResult, maxResults, pageSize, executor, prefetch, parallelism);
+        return StreamSupport.stream(pager, false).onClose(pager::close);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super RemoteUserEntity> action) {
+        while (!current.hasNext()) {
+            if (exhausted) {
+                return false;
+            }
+            current = nextPage().iterator();
+        }
+        action.accept(current.next());
+        return true;
+    }
+
+    @Override
+    public Spliterator<RemoteUserEntity> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return end == Long.MAX_VALUE ? Long.MAX_VALUE : end - nextOffset;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    private List<RemoteUserEntity> nextPage() {
+        if (!counted) {
+            counted = true;
+            countEnd();
+        }
+        requestAhead();
+        Page next = pending.poll();
+        int take = next != null ? next.take() : nextTake(nextOffset);
+        List<RemoteUserEntity> page;
+        try {
+            if (next != null) {
+                page = next.users().join();
+            } else {
+                page = fetch(nextOffset, take);
+                fetchOffset = nextOffset + take;
+            }
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException("Remote search failed at offset " + nextOffset, e);
+        } catch (CompletionException e) {
+            close();
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException uncheckedIOException) {
+                throw new UncheckedIOException("Remote search failed at offset " + nextOffset, uncheckedIOException.getCause());
+            }
+            throw e;
+        }
+        if (page.size() > take) {
+            page = page.subList(0, take);
+        }
+        nextOffset += take;
+        if (page.size() < take || nextOffset >= limit) {
+            close();
+        } else {
+            if (nextOffset >= end) {
+                // A full page at the counted end, the count may be too low
+                end = limit;
+                pagesAhead = sequentialPagesAhead;
+            }
+            requestAhead();
+        }
+        return page;
+    }
+
+    /**
+     * Narrows the end to the counted total and lets up to {@code parallelism} pages be requested at once.
+     * If counting fails, the remote server answers without a total, or the total ends before the first page,
+     * the pager keeps paging sequentially.
+     */
+    private void countEnd() {
+        RemoteCountResponse count;
+        try {
+            count = userService.getUserCount(params);
+        } catch (IOException | RuntimeException e) {
+            logger.warnf("Counting search results failed, paging sequentially: %s", e.getMessage());
+            return;
+        }
+        if (count == null || count.total() <= nextOffset) {
+            return;
+        }
+        end = Math.min(limit, count.total());
+        pagesAhead = parallelism;
+    }
+
+    /**
+     * Requests pages in the background until {@code pagesAhead} are pending or the end is reached.
+     */
+    private void requestAhead() {
+        while (pending.size() < pagesAhead && fetchOffset < end) {
+            int offset = fetchOffset;
+            int take = nextTake(offset);
+            pending.add(new Page(take, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return fetch(offset, take);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor)));
+            fetchOffset += take;
+        }
+    }
+
+    private int nextTake(int offset) {
+        return (int) Math.min(pageSize, end - offset);
+    }
+
+    private List<RemoteUserEntity> fetch(int offset, int take) throws IOException {
+        List<RemoteUserEntity> page = userService.searchUsers(params, offset, take, cancellation);
+        return page == null ? List.of() : page;
+    }
+
+    /**
+     * Aborts the pages still being fetched, their results are no longer needed.
+     */
+    private void close() {
+        cancellation.cancel();
+        pending.clear();
+        exhausted = true;
+    }
+
+    private record Page(int take, CompletableFuture<List<RemoteUserEntity>> users) {
+    }
+}
@@ -0,0 +1,90 @@
+package fis.baolm2.keycloak.service;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent identical remote calls. <br>
+ * The first caller for a key performs the call, every caller arriving while it is outstanding waits for and shares its result.
+ * Nothing is remembered once the call completes, so this is not a cache.
+ */
+public class SingleFlight {
+
+    @FunctionalInterface
+    public interface RemoteCall<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Identifies a remote call by operation and parameters, independent of the parameters' iteration order.
+     * The parameters are copied, so changing the caller's map afterwards does not change the key.
+     */
+    public record Key(String operation, Map<String, String> params) {
+        public Key {
+            params = Collections.unmodifiableSortedMap(new TreeMap<>(params));
+        }
+    }
+
+    private final Map<Key, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(Key key, RemoteCall<T> call) throws IOException {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.increment();
+            return (T) await(existing);
+        }
+        executed.increment();
+        try {
+            T result = call.call();
+            future.complete(result);
+            return result;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * @return number of remote calls actually performed.
+     */
+    public long getExecuted() {
+        return executed.sum();
+    }
+
+    /**
+     * @return number of calls that were answered by another caller's outstanding remote call.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    private static Object await(CompletableFuture<Object> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a shared remote call", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw new IOException(ioException.getMessage(), ioException);
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw (Error) cause;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package fis.baolm2.keycloak.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token buckets for an open set of keys, without a map or locks. <br>
+ * Keys are hashed onto a fixed array of stripes and every stripe is one bucket, updated with compare-and-set.
+ * Unrelated keys sharing a stripe share its budget, the array is sized so that this stays rare.
+ * <p>
+ * A stripe packs the time of its last update (milliseconds since the buckets were created, upper 40 bits)
+ * with the milli-tokens in use (lower 24 bits). Used tokens drain at the refill rate, so an all-zero stripe is a full bucket.
+ */
+class StripedTokenBucket {
+
+    static final int MAX_CAPACITY = 10_000;
+
+    private static final int USED_BITS = 24;
+    private static final long USED_MASK = (1L << USED_BITS) - 1;
+    private static final long MILLI_TOKENS = 1000;
+
+    private final AtomicLongArray stripes;
+    private final int mask;
+    private final long capacity;
+    private final long refillPerMinute;
+    private final long origin = System.nanoTime();
+
+    /**
+     * @param stripes   number of stripes, rounded up to a power of two.
+     * @param perMinute tokens refilled per minute, also the burst capacity.
+     */
+    StripedTokenBucket(int stripes, int perMinute) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.refillPerMinute = Math.min(Math.max(1, perMinute), MAX_CAPACITY);
+        this.capacity = refillPerMinute * MILLI_TOKENS;
+    }
+
+    /**
+     * Takes one token from the bucket of the key.
+     *
+     * @return {@code false} if the bucket is empty.
+     */
+    boolean tryAcquire(String key) {
+        int index = index(key);
+        long now = now();
+        while (true) {
+            long state = stripes.get(index);
+            long updated = state >>> USED_BITS;
+            long used = state & USED_MASK;
+            // milli-tokens per millisecond is perMinute * 1000 / 60_000
+            long refilled = (now - updated) * refillPerMinute / 60;
+            if (refilled >= used) {
+                used = 0;
+                updated = now;
+            } else {
+                used -= refilled;
+                // Only the time worth of whole milli-tokens is consumed, the remainder keeps refilling
+                updated += refilled * 60 / refillPerMinute;
+            }
+            if (used + MILLI_TOKENS > capacity) {
+                return false;
+            }
+            if (stripes.compareAndSet(index, state, pack(updated, used + MILLI_TOKENS))) {
+                return true;
+            }
+        }
+    }
+
+    private long now() {
+        return (System.nanoTime() - origin) / 1_000_000;
+    }
+
+    private static long pack(long millis, long used) {
+        return millis << USED_BITS | used;
+    }
+
+    private int index(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ h >>> 16) & mask;
+    }
+}
@@ -0,0 +1,180 @@
+package fis.baolm2.keycloak.service;
+
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+import fis.baolm2.keycloak.http.RemoteTimeoutException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Micro-batches single user lookups into bulk remote requests. <br>
+ * Lookups of the same type arriving within the batch window, or until the batch is full, are sent as one request
+ * and the results are handed back to each waiting caller. This trades at most one window of extra latency for fewer round-trips.
+ * A caller waits at most the window plus the budget of one bulk call, see {@link #lookup(String, String)}.
+ */
+public class UserLookupBatcher {
+
+    @FunctionalInterface
+    public interface BulkLoader {
+        List<RemoteUserEntity> load(String type, Collection<String> keys) throws IOException;
+    }
+
+    private final BulkLoader loader;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final long waitMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+
+    private final Map<String, Batch> openBatches = new HashMap<>();
+    private boolean closed;
+
+    /**
+     * @param callMillis milliseconds one call of the loader may take, normally the deadline budget of the bulk find endpoint.
+     */
+    public UserLookupBatcher(BulkLoader loader, long windowMillis, int maxBatchSize, long callMillis, ScheduledExecutorService scheduler, Executor executor) {
+        this.loader = loader;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.waitMillis = windowMillis + callMillis;
+        this.scheduler = scheduler;
+        this.executor = executor;
+    }
+
+    /**
+     * Looks up one user as part of the next batch of its type.
+     *
+     * @return the user, or {@code null} if the remote server did not return it.
+     * @throws RemoteTimeoutException if the batch is not answered within the window plus the budget of one bulk call.
+     */
+    public RemoteUserEntity lookup(String type, String key) throws IOException {
+        CompletableFuture<RemoteUserEntity> result;
+        Batch full = null;
+        synchronized (openBatches) {
+            if (closed) {
+                throw new IOException("User lookup batcher is closed");
+            }
+            Batch batch = openBatches.get(type);
+            if (batch == null) {
+                batch = new Batch(type);
+                Batch scheduled = batch;
+                try {
+                    scheduler.schedule(() -> send(scheduled), windowMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    throw new IOException("User lookup batch could not be scheduled", e);
+                }
+                openBatches.put(type, batch);
+            }
+            result = batch.waiters.computeIfAbsent(normalize(type, key), k -> new CompletableFuture<>());
+            if (batch.waiters.size() >= maxBatchSize) {
+                openBatches.remove(type);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            // The caller that filled the batch sends it, instead of waiting for the window to close
+            flush(full);
+        }
+        try {
+            return result.get(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a batched user lookup", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new RemoteTimeoutException("Batched user lookup was not answered within " + waitMillis + "ms", e);
+        }
+    }
+
+    /**
+     * Fails the lookups waiting for a batch that was not sent yet, and rejects new lookups.
+     */
+    public void close() {
+        List<Batch> pending;
+        synchronized (openBatches) {
+            closed = true;
+            pending = new ArrayList<>(openBatches.values());
+        }
+        IOException closedException = new IOException("User lookup batcher is closed");
+        pending.forEach(batch -> fail(batch, closedException));
+    }
+
+    private void send(Batch batch) {
+        try {
+            executor.execute(() -> flush(batch));
+        } catch (RejectedExecutionException e) {
+            fail(batch, new IOException("User lookup batch was rejected", e));
+        }
+    }
+
+    /**
+     * @return {@code true} if the caller owns the batch now, {@code false} if it was already flushed or failed.
+     */
+    private boolean take(Batch batch) {
+        synchronized (openBatches) {
+            openBatches.remove(batch.type, batch);
+            return batch.flushed.compareAndSet(false, true);
+        }
+    }
+
+    private void fail(Batch batch, IOException e) {
+        if (take(batch)) {
+            batch.waiters.values().forEach(waiter -> waiter.completeExceptionally(e));
+        }
+    }
+
+    private void flush(Batch batch) {
+        if (!take(batch)) {
+            return;
+        }
+        try {
+            Map<String, RemoteUserEntity> found = new HashMap<>();
+            for (RemoteUserEntity user : loader.load(batch.type, batch.waiters.keySet())) {
+                String key = keyOf(batch.type, user);
+                if (key != null) {
+                    found.put(normalize(batch.type, key), user);
+                }
+            }
+            batch.waiters.forEach((key, waiter) -> waiter.complete(found.get(key)));
+        } catch (Throwable e) {
+            batch.waiters.values().forEach(waiter -> waiter.completeExceptionally(e));
+        }
+    }
+
+    private static String keyOf(String type, RemoteUserEntity user) {
+        return switch (type) {
+            case "username" -> user.getUserName();
+            case "email" -> user.getEmail();
+            default -> user.getId();
+        };
+    }
+
+    private static String normalize(String type, String key) {
+        return "id".equals(type) ? key : key.toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Batch {
+        private final String type;
+        private final Map<String, CompletableFuture<RemoteUserEntity>> waiters = new LinkedHashMap<>();
+        private final AtomicBoolean flushed = new AtomicBoolean();
+
+        private Batch(String type) {
+            this.type = type;
+        }
+    }
+}
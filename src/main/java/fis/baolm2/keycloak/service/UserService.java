@@ -1,71 +1,185 @@
 package fis.baolm2.keycloak.service;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import fis.baolm2.keycloak.dto.RemoteAuthenticateResponse;
+import fis.baolm2.keycloak.dto.RemoteBulkFindInput;
 import fis.baolm2.keycloak.dto.RemoteCountResponse;
 import fis.baolm2.keycloak.dto.RemoteCredentialInput;
 import fis.baolm2.keycloak.dto.RemoteUserEntity;
 import fis.baolm2.keycloak.dto.RemoteVerifyPasswordResponse;
-import org.keycloak.broker.provider.util.SimpleHttp;
+import fis.baolm2.keycloak.http.CallCancellation;
+import fis.baolm2.keycloak.http.RemoteEndpoint;
+import fis.baolm2.keycloak.http.RemoteHttpClient;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.util.EntityUtils;
 import org.keycloak.component.ComponentModel;
-import org.keycloak.models.KeycloakSession;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Stream;
 
 import static fis.baolm2.keycloak.constant.RemoteUserStorageProviderConstants.*;
 
 public class UserService {
-    private final String UA = "Keycloak User Federation SPI";
-    private final String findUserUrl;
-    private final String verifyUserUrl;
-    private final String searchUserUrl;
-    private final String countUserUrl;
-    private final String authorization_username;
-    private final String authorization_password;
-    private final ObjectMapper objectMapper = new ObjectMapper();
-    private final KeycloakSession session;
-
-    public UserService(ComponentModel model, KeycloakSession session) {
-        this.session = session;
-        this.findUserUrl = model.get(REMOTE_PROVIDER_URL) + model.get(FIND_USER_ENDPOINT);
-        this.verifyUserUrl = model.get(REMOTE_PROVIDER_URL) + model.get(VERIFY_USER_ENDPOINT);
-        this.searchUserUrl = model.get(REMOTE_PROVIDER_URL) + model.get(SEARCH_USER_ENDPOINT);
-        this.countUserUrl = model.get(REMOTE_PROVIDER_URL) + model.get(COUNT_USER_ENDPOINT);
-        this.authorization_username = model.get(AUTHORIZATION_USERNAME);
-        this.authorization_password = model.get(AUTHORIZATION_PASSWORD);
+    private final RemoteHttpClient httpClient;
+    private final SingleFlight singleFlight;
+    private final int searchPageSize;
+    private final Executor backgroundExecutor;
+    private final boolean prefetch;
+    private final int searchParallelism;
+    private final UserLookupBatcher lookupBatcher;
+
+    public UserService(ComponentModel model, RemoteHttpClient httpClient, SingleFlight singleFlight, Executor backgroundExecutor, ScheduledExecutorService scheduler) {
+        this.httpClient = httpClient;
+        this.singleFlight = singleFlight;
+        this.searchPageSize = Math.max(1, model.get(SEARCH_PAGE_SIZE, DEFAULT_SEARCH_PAGE_SIZE));
+        this.backgroundExecutor = backgroundExecutor;
+        this.prefetch = model.get(SEARCH_PREFETCH_ENABLED, false);
+        this.searchParallelism = Math.max(1, model.get(SEARCH_PARALLELISM, DEFAULT_SEARCH_PARALLELISM));
+        this.lookupBatcher = httpClient.isConfigured(RemoteEndpoint.BULK_FIND)
+                ? new UserLookupBatcher(this::findUsers, model.get(BATCH_WINDOW, DEFAULT_BATCH_WINDOW),
+                model.get(BATCH_MAX_SIZE, DEFAULT_BATCH_MAX_SIZE), httpClient.getMaxCallMillis(RemoteEndpoint.BULK_FIND),
+                scheduler, backgroundExecutor)
+                : null;
+    }
+
+    /**
+     * Streams the search results page by page. Pages are only requested while the stream is being consumed,
+     * up to the configured number of pages ahead when they are fetched in parallel.
+     * A page that cannot be fetched fails the stream with an {@link java.io.UncheckedIOException}.
+     */
+    public Stream<RemoteUserEntity> streamUsers(Map<String, String> params, Integer firstResult, Integer maxResults) {
+        return RemoteUserPager.stream(this, params, firstResult, maxResults, searchPageSize, backgroundExecutor, prefetch, searchParallelism);
     }
 
+    /**
+     * Fetches one page of search results. The given params are not modified.
+     */
     public List<RemoteUserEntity> searchUsers(Map<String, String> params, Integer firstResult, Integer maxResults) throws IOException {
+        Map<String, String> query = searchQuery(params, firstResult, maxResults);
+        return singleFlight.execute(flightKey("search", query), () -> search(query, null));
+    }
+
+    /**
+     * Fetches one page of search results for a pager, aborted in flight when the cancellation is cancelled. <br>
+     * Not coalesced with other callers, aborting a shared call would fail them as well.
+     */
+    List<RemoteUserEntity> searchUsers(Map<String, String> params, Integer firstResult, Integer maxResults, CallCancellation cancellation) throws IOException {
+        return search(searchQuery(params, firstResult, maxResults), cancellation);
+    }
+
+    private static Map<String, String> searchQuery(Map<String, String> params, Integer firstResult, Integer maxResults) {
+        Map<String, String> query = new HashMap<>(params);
         if (firstResult != null) {
-            params.put("skip", String.valueOf(firstResult));
+            query.put("skip", String.valueOf(firstResult));
         }
         if (maxResults != null) {
-            params.put("take", String.valueOf(maxResults));
+            query.put("take", String.valueOf(maxResults));
         }
-        try (SimpleHttp.Response response = doQuery(searchUserUrl, params)) {
-            if (response.asString() == null) {
-                return null;
+        return query;
+    }
+
+    private List<RemoteUserEntity> search(Map<String, String> query, CallCancellation cancellation) throws IOException {
+        return httpClient.get(RemoteEndpoint.SEARCH, query, cancellation, response -> {
+            HttpEntity entity = successfulEntity(response);
+            return entity == null ? null : RemoteResponseReader.USER_LIST.read(entity);
+        });
+    }
+
+    /**
+     * Finds a single remote user.
+     *
+     * @return the user, or {@code null} if the remote server does not know it.
+     * @throws IOException if the remote server cannot be reached, so callers can tell an outage from a missing user.
+     */
+    public RemoteUserEntity getUser(Map<String, String> params) throws IOException {
+        return singleFlight.execute(flightKey("find", params), () -> {
+            String type = params.get("type");
+            if (lookupBatcher != null && type != null && params.get(type) != null) {
+                return lookupBatcher.lookup(type, params.get(type));
             }
-            return objectMapper.readValue(response.asString(), new TypeReference<>() {
-            });
+            return httpClient.get(RemoteEndpoint.FIND, params, UserService::readUser);
+        });
+    }
+
+    /**
+     * Asks the remote server whether a cached user changed, with a conditional request using the validators it was read with.
+     *
+     * @return {@code cached} itself if the remote server answered 304 Not Modified, the changed user,
+     * or {@code null} if the remote server no longer knows it.
+     */
+    public RemoteUserEntity revalidateUser(String type, String key, RemoteUserEntity cached) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        params.put("type", type);
+        params.put(type, key);
+        return singleFlight.execute(flightKey("revalidate", params), () ->
+                httpClient.get(RemoteEndpoint.FIND, params, cached.getEtag(), cached.getLastModified(), response -> {
+                    if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                        EntityUtils.consumeQuietly(response.getEntity());
+                        return cached;
+                    }
+                    return readUser(response);
+                }));
+    }
+
+    /**
+     * Finds several users of the same key type with one call to the bulk find endpoint. Unknown keys are left out of the result.
+     */
+    public List<RemoteUserEntity> findUsers(String type, Collection<String> keys) throws IOException {
+        RemoteBulkFindInput input = new RemoteBulkFindInput(type, keys);
+        return httpClient.postJson(RemoteEndpoint.BULK_FIND, RemoteResponseReader.writeJson(input), response -> {
+            HttpEntity entity = successfulEntity(response);
+            List<RemoteUserEntity> users = entity == null ? null : RemoteResponseReader.USER_LIST.read(entity);
+            return users == null ? List.of() : users;
+        });
+    }
+
+    public boolean isBulkFindEnabled() {
+        return lookupBatcher != null;
+    }
+
+    /**
+     * Fails the lookups still waiting for a batch, the executors sending them are shut down next.
+     */
+    public void close() {
+        if (lookupBatcher != null) {
+            lookupBatcher.close();
         }
     }
 
-    public RemoteUserEntity getUser(Map<String, String> params) {
-        try (SimpleHttp.Response response = doQuery(findUserUrl, params)) {
-            if (response.asString() == null) {
-                return null;
+    /**
+     * Fetches the ids of all members of a group, page by page with {@code skip}/{@code take}.
+     */
+    public List<String> getGroupMemberIds(String group) throws IOException {
+        List<String> members = new ArrayList<>();
+        for (int offset = 0; ; offset += searchPageSize) {
+            Map<String, String> params = new HashMap<>();
+            params.put("group", group);
+            params.put("skip", String.valueOf(offset));
+            params.put("take", String.valueOf(searchPageSize));
+            List<String> page = singleFlight.execute(flightKey("members", params), () -> httpClient.get(RemoteEndpoint.GROUP_MEMBERS, params, response -> {
+                HttpEntity entity = successfulEntity(response);
+                List<String> ids = entity == null ? null : RemoteResponseReader.ID_LIST.read(entity);
+                return ids == null ? List.<String>of() : ids;
+            }));
+            members.addAll(page);
+            if (page.size() < searchPageSize) {
+                return members;
             }
-            return objectMapper.readValue(response.asString(), RemoteUserEntity.class);
-        } catch (Exception e) {
-            return null;
         }
     }
 
-    public RemoteUserEntity getUserById(String id) {
+    public RemoteUserEntity getUserById(String id) throws IOException {
         Map<String, String> params = new HashMap<>() {{
             put("type", "id");
             put("id", id);
@@ -73,7 +187,7 @@ public class UserService {
         return getUser(params);
     }
 
-    public RemoteUserEntity getUserByUsername(String username) {
+    public RemoteUserEntity getUserByUsername(String username) throws IOException {
         Map<String, String> params = new HashMap<>() {{
             put("type", "username");
             put("username", username);
@@ -81,7 +195,7 @@ public class UserService {
         return getUser(params);
     }
 
-    public RemoteUserEntity getUserByEmail(String email) {
+    public RemoteUserEntity getUserByEmail(String email) throws IOException {
         Map<String, String> params = new HashMap<>() {{
             put("type", "email");
             put("email", email);
@@ -89,39 +203,78 @@ public class UserService {
         return getUser(params);
     }
 
-    public RemoteCountResponse getUserCount(Map<String, String> params) {
-        try (SimpleHttp.Response response = doQuery(countUserUrl, params)) {
-            if (response.asString() == null) {
-                return new RemoteCountResponse(0);
-            }
-            return objectMapper.readValue(response.asString(), RemoteCountResponse.class);
-        } catch (Exception e) {
-            return new RemoteCountResponse(0);
-        }
+    /**
+     * @return the count, or {@code null} if the remote server answered without a total, e.g. with 404 or 204.
+     */
+    public RemoteCountResponse getUserCount(Map<String, String> params) throws IOException {
+        Map<String, String> query = params == null ? Map.of() : params;
+        return singleFlight.execute(flightKey("count", query), () -> httpClient.get(RemoteEndpoint.COUNT, query, response -> {
+            HttpEntity entity = successfulEntity(response);
+            RemoteCountResponse count = entity == null ? null : RemoteResponseReader.COUNT.read(entity);
+            return count == null || count.total() == null ? null : count;
+        }));
     }
 
+    /**
+     * @return the verification result, or {@code null} if the remote server answered without one, e.g. with 404 or 204.
+     */
     public RemoteVerifyPasswordResponse verifyPassword(String username, String password) throws IOException {
         RemoteCredentialInput input = new RemoteCredentialInput(username, password);
-        try (SimpleHttp.Response response = SimpleHttp.doPost(verifyUserUrl, session)
-                .header("User-Agent", UA)
-                .authBasic(authorization_username, authorization_password)
-                .json(input)
-                .asResponse()) {
-            if (response.asString() == null) {
-                return new RemoteVerifyPasswordResponse(false);
-            }
-            return objectMapper.readValue(response.asString(), RemoteVerifyPasswordResponse.class);
+        return httpClient.postJson(RemoteEndpoint.VERIFY, RemoteResponseReader.writeJson(input), response -> {
+            HttpEntity entity = successfulEntity(response);
+            return entity == null ? null : RemoteResponseReader.VERIFY_PASSWORD.read(entity);
+        });
+    }
+
+    public boolean isAuthenticateEnabled() {
+        return httpClient.isConfigured(RemoteEndpoint.AUTHENTICATE);
+    }
+
+    /**
+     * Looks a user up by username or email and verifies its password with one call to the authenticate endpoint.
+     *
+     * @return the user with the verification result, or {@code null} if the remote server does not know the user.
+     */
+    public RemoteAuthenticateResponse authenticate(String username, String password) throws IOException {
+        RemoteCredentialInput input = new RemoteCredentialInput(username, password);
+        return httpClient.postJson(RemoteEndpoint.AUTHENTICATE, RemoteResponseReader.writeJson(input), response -> {
+            HttpEntity entity = successfulEntity(response);
+            RemoteAuthenticateResponse authenticated = entity == null ? null : RemoteResponseReader.AUTHENTICATE.read(entity);
+            return authenticated == null || authenticated.user() == null ? null : authenticated;
+        });
+    }
+
+    private static RemoteUserEntity readUser(HttpResponse response) throws IOException {
+        HttpEntity entity = successfulEntity(response);
+        RemoteUserEntity user = entity == null ? null : RemoteResponseReader.USER.read(entity);
+        if (user != null) {
+            user.setEtag(headerValue(response, HttpHeaders.ETAG));
+            user.setLastModified(headerValue(response, HttpHeaders.LAST_MODIFIED));
         }
+        return user;
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    private static SingleFlight.Key flightKey(String operation, Map<String, String> params) {
+        return new SingleFlight.Key(operation, params);
     }
 
-    private SimpleHttp.Response doQuery(String url, Map<String, String> params) throws IOException {
-        SimpleHttp simpleHttp = SimpleHttp.doGet(url, session).header("User-Agent", UA);
-        if (authorization_username != null && !authorization_username.isEmpty()) {
-            simpleHttp.authBasic(authorization_username, authorization_password);
+    /**
+     * @return the response entity, or {@code null} if the remote server answered without content or with 404.
+     * @throws HttpResponseException on any other unsuccessful status.
+     */
+    private static HttpEntity successfulEntity(HttpResponse response) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        if (status == HttpStatus.SC_NOT_FOUND || status == HttpStatus.SC_NO_CONTENT) {
+            return null;
         }
-        for (Map.Entry<String, String> param : params.entrySet()) {
-            simpleHttp.param(param.getKey(), param.getValue());
+        if (status >= HttpStatus.SC_MULTIPLE_CHOICES) {
+            throw new HttpResponseException(status, "Remote server responded with status " + status);
         }
-        return simpleHttp.asResponse();
+        return response.getEntity();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,156 @@
+package fis.baolm2.keycloak.cache;
+
+import fis.baolm2.keycloak.dto.RemoteUserEntity;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Two nodes, each with its own local {@link RemoteUserCache}, sharing users through a replicated cache
+ * of two embedded cache managers, like Keycloak's {@code work} cache.
+ */
+class RemoteClusterUserCacheTest {
+
+    private static final String CACHE_NAME = "work";
+    private static final String COMPONENT_ID = "component";
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private DefaultCacheManager managerA;
+    private DefaultCacheManager managerB;
+    private Cache<String, String> cacheA;
+    private RemoteUserCache localA;
+    private RemoteUserCache localB;
+    private RemoteClusterUserCache sharedA;
+    private RemoteClusterUserCache sharedB;
+
+    @BeforeEach
+    void startNodes() {
+        managerA = cacheManager("node-a");
+        managerB = cacheManager("node-b");
+        cacheA = managerA.getCache(CACHE_NAME);
+        Cache<String, String> cacheB = managerB.getCache(CACHE_NAME);
+        await(() -> managerA.getMembers().size() == 2 && managerB.getMembers().size() == 2, "cluster of two nodes");
+        localA = new RemoteUserCache(60_000, 0, 100);
+        localB = new RemoteUserCache(60_000, 0, 100);
+        sharedA = shared(cacheA, localA);
+        sharedB = shared(cacheB, localB);
+    }
+
+    @AfterEach
+    void stopNodes() {
+        sharedA.close();
+        sharedB.close();
+        managerA.close();
+        managerB.close();
+    }
+
+    @Test
+    void putOnOneNodeIsFoundOnTheOther() {
+        localA.put(user("1", "alice"));
+
+        await(() -> sharedB.get(RemoteUserCache.TYPE_USERNAME, "Alice") != null, "user replicated to node b");
+        RemoteUserCache.Entry entry = localB.get(RemoteUserCache.TYPE_USERNAME, "alice");
+        assertNotNull(entry);
+        assertEquals("1", entry.getEntity().getId());
+        assertEquals(1, localB.getSecondLevelHits());
+    }
+
+    @Test
+    void invalidateOnOneNodeEvictsTheOther() {
+        localA.put(user("1", "alice"));
+        await(() -> sharedB.get(RemoteUserCache.TYPE_ID, "1") != null, "user replicated to node b");
+        assertNotNull(localB.get(RemoteUserCache.TYPE_ID, "1"));
+
+        localA.invalidate("1");
+
+        await(() -> localB.getStale(RemoteUserCache.TYPE_ID, "1") == null, "user evicted on node b");
+        assertNull(sharedB.get(RemoteUserCache.TYPE_ID, "1"));
+        assertNull(localB.get(RemoteUserCache.TYPE_ID, "1"));
+    }
+
+    @Test
+    void changeOnOneNodeEvictsTheOthersCopy() {
+        localB.put(user("1", "alice"));
+        await(() -> sharedA.get(RemoteUserCache.TYPE_ID, "1") != null, "user replicated to node a");
+
+        localA.put(user("1", "alice.changed"));
+
+        await(() -> localB.getStale(RemoteUserCache.TYPE_ID, "1") == null, "stale copy evicted on node b");
+        await(() -> {
+            RemoteUserEntity shared = sharedB.get(RemoteUserCache.TYPE_ID, "1");
+            return shared != null && "alice.changed".equals(shared.getUserName());
+        }, "changed user replicated to node b");
+        assertEquals("alice.changed", localB.get(RemoteUserCache.TYPE_ID, "1").getEntity().getUserName());
+    }
+
+    @Test
+    void renameRemovesTheOldUsernameKey() {
+        localA.put(user("1", "alice"));
+        await(() -> sharedB.get(RemoteUserCache.TYPE_USERNAME, "alice") != null, "user replicated to node b");
+
+        localA.put(user("1", "alice.renamed"));
+
+        await(() -> sharedB.get(RemoteUserCache.TYPE_USERNAME, "alice") == null, "old username key removed on node b");
+        assertNull(localB.get(RemoteUserCache.TYPE_USERNAME, "alice"));
+        assertEquals("1", localB.get(RemoteUserCache.TYPE_USERNAME, "alice.renamed").getEntity().getId());
+    }
+
+    @Test
+    void staleUsernameKeyIsAMiss() {
+        localA.put(user("1", "alice"));
+        await(() -> sharedB.get(RemoteUserCache.TYPE_ID, "1") != null, "user replicated to node b");
+        // A username key left behind by a rename the node did not see
+        cacheA.put(COMPONENT_ID + ":" + RemoteUserCache.TYPE_USERNAME + ":bob", "1", 60, TimeUnit.SECONDS);
+        await(() -> sharedB.get(RemoteUserCache.TYPE_USERNAME, "bob") != null, "stale key replicated to node b");
+
+        assertNull(localB.get(RemoteUserCache.TYPE_USERNAME, "bob"));
+        assertNull(localB.getStale(RemoteUserCache.TYPE_USERNAME, "bob"));
+    }
+
+    private static DefaultCacheManager cacheManager(String nodeName) {
+        GlobalConfigurationBuilder global = GlobalConfigurationBuilder.defaultClusteredBuilder();
+        global.transport()
+                .clusterName("remote-user-cache-test")
+                .nodeName(nodeName)
+                .addProperty("configurationFile", "jgroups-test.xml");
+        DefaultCacheManager manager = new DefaultCacheManager(global.build());
+        manager.defineConfiguration(CACHE_NAME, new ConfigurationBuilder().clustering().cacheMode(CacheMode.REPL_SYNC).build());
+        return manager;
+    }
+
+    private static RemoteClusterUserCache shared(Cache<String, String> cache, RemoteUserCache local) {
+        RemoteClusterUserCache shared = new RemoteClusterUserCache(cache, COMPONENT_ID, local);
+        local.addListener(shared);
+        local.setSecondLevel(shared);
+        return shared;
+    }
+
+    private static RemoteUserEntity user(String id, String username) {
+        return new RemoteUserEntity(id, "First", "Last", username, username + "@example.com", true, true, null, null, null);
+    }
+
+    private static void await(BooleanSupplier condition, String description) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for " + description);
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("Interrupted waiting for " + description);
+            }
+        }
+    }
+}